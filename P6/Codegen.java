@@ -1,31 +1,108 @@
 import java.io.*;
-import java.util.HashMap;
+import java.util.*;
 
 // **********************************************************************
 // The Codegen class provides constants and operations useful for code
 // generation.
 //
 // The constants are:
-//     Registers: FP, SP, RA, V0, V1, A0, T0, T1
+//     Registers: FP, SP, GP, RA, V0, V1, A0, T0, T1, and S (the callee-saved
+//                registers $s0-$s7, which hold variables the optimizer
+//                keeps out of memory)
 //     Values: TRUE, FALSE
 //
 // The operations include various "generate" methods to print nicely
-// formatted assembly code:
+// formatted assembly code (branches are held back until the next
+// instruction or label is generated, so that a branch to the label that
+// immediately follows it can be dropped; see genLabel):
 //     generateWithComment
 //     generate
 //     generateIndexed
 //     generateLabeled
 //     genPush
 //     genPop
+//     genSpill
+//     genReload
 //     genLabel
 // and a method nextLabel to create and return a new label.
 //
+// Each function is generated by one thread (startFunction, endFunction)
+// into its own buffer, with its own labels (.Lname_0, .Lname_1, ...), so
+// that functions can be generated in parallel; the buffers are then
+// written (emit) in declaration order, which makes the output the same
+// whatever the number of threads.
+//
+// Global variables and string literals are not written where they are
+// declared or used; they are recorded (addGlobalVar, stringLabel) and
+// written in a single data segment after all of the code by
+// genDataSegment. The globals declared before main are placed at the
+// start of that segment, which main points $gp at (genGpSetup), so that
+// generateGlobal can reach them with a single $gp-relative instruction.
+//
 // **********************************************************************
 
 public class Codegen {
-    // file into which generated code is written
-    public static PrintWriter p = null;
-    public static HashMap<String, String> stringMap;
+    // the contents of the data segment: the labels of each distinct string
+    // literal (one per function that uses it), and the size of each global
+    // variable in declaration order
+    public static HashMap<String, List<String>> stringMap;
+    public static LinkedHashMap<String, Integer> globalVars;
+
+    // the offset from $gp of each global in the small-data area, which
+    // is closed once main has set up $gp (or the area is full)
+    private static HashMap<String, Integer> gpOffsets;
+    private static int gpSize;
+    private static boolean gpClosed;
+    private static final int GP_LIMIT = 32768;
+    private static final String GP_LABEL = ".Lgp";
+
+    // **********************************************************************
+    // Function
+    //    the code for one function, and the state of its generation
+    // **********************************************************************
+    public static final class Function {
+        // buffer and writer into which the code is written
+        private StringWriter text = new StringWriter();
+        private PrintWriter p = new PrintWriter(text);
+
+        // for generating labels
+        private String labelPrefix;
+        private int currLabel = 0;
+
+        // the conditional branch (opcode, two operands, and target) and the
+        // unconditional branch target that have not been written yet
+        private String[] pendingBranch = null;
+        private String pendingJump = null;
+
+        // the spill slots, which hold expression temporaries: the offset
+        // from $fp of the first one, and the number in use now and at most
+        private int spillBase;
+        private int spillDepth;
+        private int spillMax;
+
+        // the number of registers of HOLD in use
+        private int held;
+
+        // the label of each string literal used
+        private LinkedHashMap<String, String> strings =
+            new LinkedHashMap<String, String>();
+
+        // what the thread was generating before this function
+        private Function outer;
+
+        private Function(String name) {
+            labelPrefix = ".L" + name + "_";
+        }
+    }
+
+    // the function each thread is generating (outside of startFunction
+    // and endFunction, one for the code outside of functions)
+    private static final ThreadLocal<Function> fn =
+        new ThreadLocal<Function>() {
+            protected Function initialValue() {
+                return new Function("");
+            }
+        };
 
     // values of true and false
     public static final String TRUE = "1";
@@ -34,20 +111,30 @@ public class Codegen {
     // registers
     public static final String FP = "$fp";
     public static final String SP = "$sp";
+    public static final String GP = "$gp";
     public static final String RA = "$ra";
     public static final String V0 = "$v0";
     public static final String V1 = "$v1";
     public static final String A0 = "$a0";
     public static final String T0 = "$t0";
     public static final String T1 = "$t1";
+    public static final String[] S = { "$s0", "$s1", "$s2", "$s3",
+                                       "$s4", "$s5", "$s6", "$s7" };
+
+    // registers that hold expression temporaries while code that makes no
+    // call runs (they are not saved across calls)
+    public static final String[] HOLD = { "$t2", "$t3", "$t4", "$t5",
+                                          "$t6", "$t7", "$t8", "$t9" };
 
 
     // for pretty printing generated code
     private static final int MAXLEN = 4;
 
-
-    // for generating labels
-    private static int currLabel = 0;
+    // number of copies of the body of a repeat loop with a constant count
+    // emitted per test of its counter (1 disables unrolling); set with
+    // -Dp6.repeatUnroll=n
+    public static final int repeatUnroll =
+        Integer.getInteger("p6.repeatUnroll", 4);
 
 
     // **********************************************************************
@@ -56,6 +143,67 @@ public class Codegen {
     // **********************************************************************
     // **********************************************************************
 
+    // **********************************************************************
+    // startFunction
+    //    start generating the function with the given name in this thread
+    // **********************************************************************
+    public static void startFunction(String name) {
+        Function f = new Function(name);
+        f.outer = fn.get();
+        fn.set(f);
+    }
+
+    // **********************************************************************
+    // endFunction
+    //    finish the function this thread is generating and return its code
+    // **********************************************************************
+    public static Function endFunction() {
+        flushBranches();
+        Function f = fn.get();
+        f.p.flush();
+        fn.set(f.outer);
+        f.outer = null;
+        return f;
+    }
+
+    // **********************************************************************
+    // emit
+    //    write the code of function f, and record the string literals it
+    //    uses for the data segment
+    // **********************************************************************
+    public static void emit(Function f) {
+        flushBranches();
+        out().print(f.text.toString());
+        for (Map.Entry<String, String> e : f.strings.entrySet()) {
+            List<String> labels = stringMap.get(e.getKey());
+            if (labels == null) {
+                labels = new ArrayList<String>();
+                stringMap.put(e.getKey(), labels);
+            }
+            labels.add(e.getValue());
+        }
+    }
+
+    // **********************************************************************
+    // out
+    //    the writer into which this thread is writing code
+    // **********************************************************************
+    public static PrintWriter out() {
+        return fn.get().p;
+    }
+
+    // **********************************************************************
+    // setOutput
+    //    write this thread's code into p from now on; returns the writer
+    //    used until now
+    // **********************************************************************
+    public static PrintWriter setOutput(PrintWriter p) {
+        Function f = fn.get();
+        PrintWriter old = f.p;
+        f.p = p;
+        return old;
+    }
+
     // **********************************************************************
     // generateWithComment
     //    given:  op code, comment, and 0 to 3 string args
@@ -65,20 +213,21 @@ public class Codegen {
                                         String arg1, String arg2, String arg3) {
         int space = MAXLEN - opcode.length() + 2;
 
-        p.print("\t" + opcode);
+        flushBranches();
+        out().print("\t" + opcode);
         if (arg1 != "") {
             for (int k = 1; k <= space; k++)
-                p.print(" ");
-            p.print(arg1);
+                out().print(" ");
+            out().print(arg1);
             if (arg2 != "") {
-                p.print(", " + arg2);
+                out().print(", " + arg2);
                 if (arg3 != "")
-                    p.print(", " + arg3);
+                    out().print(", " + arg3);
             }
         }
         if (comment != "")
-            p.print("\t\t#" + comment);
-        p.println();
+            out().print("\t\t#" + comment);
+        out().println();
     }
 
     public static void generateWithComment(String opcode, String comment,
@@ -102,20 +251,37 @@ public class Codegen {
     // **********************************************************************
     public static void generate(String opcode, String arg1, String arg2,
                                 String arg3) {
+        Function f = fn.get();
+        if (opcode.equals("b")) {
+            if (f.pendingJump == null) {  // otherwise this one is unreachable
+                f.pendingJump = arg1;
+            }
+            return;
+        }
+        flushBranches();
+        if (inverse(opcode) != null) {
+            f.pendingBranch = new String[] { opcode, arg1, arg2, arg3 };
+            return;
+        }
+        write(opcode, arg1, arg2, arg3);
+    }
+
+    private static void write(String opcode, String arg1, String arg2,
+                              String arg3) {
         int space = MAXLEN - opcode.length() + 2;
 
-        p.print("\t" + opcode);
+        out().print("\t" + opcode);
         if (arg1 != "") {
             for (int k = 1; k <= space; k++)
-                p.print(" ");
-            p.print(arg1);
+                out().print(" ");
+            out().print(arg1);
             if (arg2 != "") {
-                p.print(", " + arg2);
+                out().print(", " + arg2);
                 if (arg3 != "")
-                    p.print(", " + arg3);
+                    out().print(", " + arg3);
             }
         }
-        p.println();
+        out().println();
     }
 
     public static void generate(String opcode, String arg1, String arg2) {
@@ -139,10 +305,11 @@ public class Codegen {
                                 int arg3) {
         int space = MAXLEN - opcode.length() + 2;
 
-        p.print("\t" + opcode);
+        flushBranches();
+        out().print("\t" + opcode);
         for (int k = 1; k <= space; k++)
-            p.print(" ");
-        p.println(arg1 + ", " + arg2 + ", " + arg3);
+            out().print(" ");
+        out().println(arg1 + ", " + arg2 + ", " + arg3);
     }
 
     // **********************************************************************
@@ -153,10 +320,11 @@ public class Codegen {
     public static void generate(String opcode, String arg1, int arg2) {
         int space = MAXLEN - opcode.length() + 2;
 
-        p.print("\t" + opcode);
+        flushBranches();
+        out().print("\t" + opcode);
         for (int k = 1; k <= space; k++)
-            p.print(" ");
-        p.println(arg1 + ", " + arg2);
+            out().print(" ");
+        out().println(arg1 + ", " + arg2);
     }
 
     // **********************************************************************
@@ -170,13 +338,14 @@ public class Codegen {
                                        int arg3, String comment) {
         int space = MAXLEN - opcode.length() + 2;
 
-        p.print("\t" + opcode);
+        flushBranches();
+        out().print("\t" + opcode);
         for (int k = 1; k <= space; k++)
-            p.print(" ");
-        p.print(arg1 + ", " + arg3 + "(" + arg2 + ")");
+            out().print(" ");
+        out().print(arg1 + ", " + arg3 + "(" + arg2 + ")");
         if (comment != "")
-            p.print("\t#" + comment);
-        p.println();
+            out().print("\t#" + comment);
+        out().println();
     }
 
     public static void generateIndexed(String opcode, String arg1, String arg2,
@@ -193,16 +362,17 @@ public class Codegen {
                                        String comment, String arg1) {
         int space = MAXLEN - opcode.length() + 2;
 
-        p.print(label + ":");
-        p.print("\t" + opcode);
+        flushBranches();
+        out().print(label + ":");
+        out().print("\t" + opcode);
         if (arg1 != "") {
             for (int k = 1; k <= space; k++)
-                p.print(" ");
-            p.print(arg1);
+                out().print(" ");
+            out().print(arg1);
         }
         if (comment != "")
-            p.print("\t# " + comment);
-        p.println();
+            out().print("\t# " + comment);
+        out().println();
     }
 
     public static void generateLabeled(String label, String opcode,
@@ -228,16 +398,106 @@ public class Codegen {
         generate("addu", SP, SP, 4);
     }
 
+    // **********************************************************************
+    // startSpills
+    //    start a function whose spill slots go down from offset base
+    // **********************************************************************
+    public static void startSpills(int base) {
+        Function f = fn.get();
+        f.spillBase = base;
+        f.spillDepth = 0;
+        f.spillMax = 0;
+    }
+
+    // **********************************************************************
+    // spillSize
+    //    the number of bytes of spill slots the function has needed
+    // **********************************************************************
+    public static int spillSize() {
+        return 4 * fn.get().spillMax;
+    }
+
+    // **********************************************************************
+    // genSpill
+    //    generate code to save the given temporary in the next spill slot
+    // **********************************************************************
+    public static void genSpill(String s) {
+        Function f = fn.get();
+        generateIndexed("sw", s, FP, f.spillBase - 4 * f.spillDepth, "SPILL");
+        f.spillDepth++;
+        f.spillMax = Math.max(f.spillMax, f.spillDepth);
+    }
+
+    // **********************************************************************
+    // genReload
+    //    generate code to load the most recently spilled temporary into the
+    //    given register, freeing its slot
+    // **********************************************************************
+    public static void genReload(String s) {
+        Function f = fn.get();
+        f.spillDepth--;
+        generateIndexed("lw", s, FP, f.spillBase - 4 * f.spillDepth, "RELOAD");
+    }
+
+    // **********************************************************************
+    // canHold
+    //    is a register of HOLD free?
+    // **********************************************************************
+    public static boolean canHold() {
+        return fn.get().held < HOLD.length;
+    }
+
+    // **********************************************************************
+    // genHold
+    //    generate code to keep the given temporary in the next free register
+    //    of HOLD; nothing up to the matching genRelease may make a call
+    // **********************************************************************
+    public static void genHold(String s) {
+        Function f = fn.get();
+        generate("move", HOLD[f.held], s);
+        f.held++;
+    }
+
+    // **********************************************************************
+    // genRelease
+    //    generate code to move the most recently held temporary into the
+    //    given register, freeing its register
+    // **********************************************************************
+    public static void genRelease(String s) {
+        Function f = fn.get();
+        f.held--;
+        generate("move", s, HOLD[f.held]);
+    }
+
     // **********************************************************************
     // genLabel
     //   given:    label L and comment (comment may be empty)
     //   generate: L:    # comment
+    //   a pending branch to L is dropped, and the pair
+    //        bxx  ..., L
+    //        b    M
+    //   L:
+    //   becomes "bnotxx ..., M"
     // **********************************************************************
     public static void genLabel(String label, String comment) {
-        p.print(label + ":");
+        Function f = fn.get();
+        if (label.equals(f.pendingJump)) {
+            f.pendingJump = null;
+        }
+        if (f.pendingBranch != null && f.pendingBranch[3].equals(label)) {
+            if (f.pendingJump == null) {
+                f.pendingBranch = null;
+            } else {
+                f.pendingBranch[0] = inverse(f.pendingBranch[0]);
+                f.pendingBranch[3] = f.pendingJump;
+                f.pendingJump = null;
+            }
+        }
+        flushBranches();
+        out().print(label + ":");
         if (comment != "")
-            p.print("\t\t" + "# " + comment);
-        p.println();
+            out().print("\t\t" + "# " + comment);
+        out().println();
     }
 
     public static void genLabel(String label) {
@@ -245,19 +505,224 @@ public class Codegen {
     }
 
     // **********************************************************************
-    // Return a different label each time:
-    //        L0 L1 L2, etc.
+    // flushBranches
+    //    write the branches that are being held back
+    // **********************************************************************
+    private static void flushBranches() {
+        Function f = fn.get();
+        if (f.pendingBranch != null) {
+            write(f.pendingBranch[0], f.pendingBranch[1], f.pendingBranch[2],
+                  f.pendingBranch[3]);
+            f.pendingBranch = null;
+        }
+        if (f.pendingJump != null) {
+            write("b", f.pendingJump, "", "");
+            f.pendingJump = null;
+        }
+    }
+
+    // **********************************************************************
+    // inverse
+    //    the conditional branch taken exactly when the given one is not, or
+    //    null if opcode is not a conditional branch
+    // **********************************************************************
+    private static String inverse(String opcode) {
+        String[][] pairs = { { "beq", "bne" }, { "blt", "bge" },
+                             { "bgt", "ble" } };
+        for (String[] pair : pairs) {
+            if (opcode.equals(pair[0])) {
+                return pair[1];
+            } else if (opcode.equals(pair[1])) {
+                return pair[0];
+            }
+        }
+        return null;
+    }
+
+    // **********************************************************************
+    // Return a different label each time, within the current function:
+    //        .Lname_0 .Lname_1 .Lname_2, etc.
     // **********************************************************************
     public static String nextLabel() {
-        Integer k = new Integer(currLabel++);
-        String tmp = ".L" + k;
-        return(tmp);
+        Function f = fn.get();
+        return f.labelPrefix + f.currLabel++;
+    }
+
+    // **********************************************************************
+    // initData
+    //    start with an empty data segment
+    // **********************************************************************
+    public static void initData() {
+        stringMap = new HashMap<String, List<String>>();
+        globalVars = new LinkedHashMap<String, Integer>();
+        gpOffsets = new HashMap<String, Integer>();
+        gpSize = 0;
+        gpClosed = false;
+    }
+
+    // **********************************************************************
+    // addGlobalVar
+    //    reserve varSize bytes for the global variable varName
+    // **********************************************************************
+    public static void addGlobalVar(String varName, int varSize) {
+        globalVars.put(varName, varSize);
+        if (!gpClosed && gpSize + varSize <= GP_LIMIT) {
+            gpOffsets.put(varName, gpSize);
+            gpSize += varSize;
+        } else {
+            gpClosed = true;
+        }
+    }
+
+    // **********************************************************************
+    // closeGp
+    //    place no more globals in the small-data area (called when main is
+    //    declared, since $gp is set up on entry to main)
+    // **********************************************************************
+    public static void closeGp() {
+        gpClosed = true;
+    }
+
+    // **********************************************************************
+    // genGpSetup
+    //    point $gp at the small-data area (called on entry to main)
+    // **********************************************************************
+    public static void genGpSetup() {
+        if (!gpOffsets.isEmpty()) {
+            generate("la", GP, GP_LABEL);
+        }
+    }
+
+    // **********************************************************************
+    // generateGlobal
+    //    write "opcode reg, address" for the word offset bytes into the
+    //    global variable varName
+    // **********************************************************************
+    public static void generateGlobal(String opcode, String reg,
+                                      String varName, int offset) {
+        Integer gpOffset = gpOffsets.get(varName);
+        if (gpOffset != null) {
+            generateIndexed(opcode, reg, GP, gpOffset + offset);
+        } else if (offset == 0) {
+            generate(opcode, reg, "_" + varName);
+        } else {
+            generate(opcode, reg, "_" + varName + "+" + offset);
+        }
+    }
+
+    // **********************************************************************
+    // stringLabel
+    //    return the label of the string literal lit (including its quotes)
+    // **********************************************************************
+    public static String stringLabel(String lit) {
+        Function f = fn.get();
+        String label = f.strings.get(lit);
+        if (label == null) {
+            label = nextLabel();
+            f.strings.put(lit, label);
+        }
+        return label;
+    }
+
+    // **********************************************************************
+    // genDataSegment
+    //    write the global variables and then the string literals as one
+    //    .data block; a literal that is a suffix of a longer one shares
+    //    its bytes, by splitting the longer one into .ascii pieces with the
+    //    labels of each suffix at its start
+    // **********************************************************************
+    public static void genDataSegment() {
+        flushBranches();
+        if (globalVars.isEmpty() && stringMap.isEmpty()) {
+            return;
+        }
+        out().print("\t.data\n\t.align 2\n");
+        if (!gpOffsets.isEmpty()) {
+            out().print(GP_LABEL + ":\n");
+        }
+        for (Map.Entry<String, Integer> e : globalVars.entrySet()) {
+            out().print(String.format("_%s:\t.space %d\n", e.getKey(),
+                                  e.getValue()));
+        }
+
+        List<String> lits = new ArrayList<String>(stringMap.keySet());
+        final HashMap<String, List<String>> chars =
+            new HashMap<String, List<String>>();
+        for (String lit : lits) {
+            chars.put(lit, chars(lit));
+        }
+        Collections.sort(lits, new Comparator<String>() {
+            public int compare(String a, String b) {
+                int diff = chars.get(b).size() - chars.get(a).size();
+                return diff != 0 ? diff : a.compareTo(b);
+            }
+        });
+
+        // each literal that is not a suffix of a longer one, with the
+        // labels to place in it (by character position)
+        List<String> hosts = new ArrayList<String>();
+        HashMap<String, TreeMap<Integer, List<String>>> labels =
+            new HashMap<String, TreeMap<Integer, List<String>>>();
+        for (String lit : lits) {
+            List<String> c = chars.get(lit);
+            String host = null;
+            for (String h : hosts) {
+                List<String> hc = chars.get(h);
+                if (hc.subList(hc.size() - c.size(), hc.size()).equals(c)) {
+                    host = h;
+                    break;
+                }
+            }
+            if (host == null) {
+                host = lit;
+                hosts.add(host);
+                labels.put(host, new TreeMap<Integer, List<String>>());
+            }
+            labels.get(host).put(chars.get(host).size() - c.size(),
+                                 stringMap.get(lit));
+        }
+
+        for (String host : hosts) {
+            List<String> c = chars.get(host);
+            Iterator<Map.Entry<Integer, List<String>>> it =
+                labels.get(host).entrySet().iterator();
+            Map.Entry<Integer, List<String>> e = it.next();
+            while (e != null) {
+                Map.Entry<Integer, List<String>> next =
+                    it.hasNext() ? it.next() : null;
+                int end = next == null ? c.size() : next.getKey();
+                String text = "";
+                for (String ch : c.subList(e.getKey(), end)) {
+                    text += ch;
+                }
+                List<String> names = e.getValue();
+                for (String name : names.subList(0, names.size() - 1)) {
+                    out().print(name + ":\n");
+                }
+                out().print(String.format("%s:\t%s \"%s\"\n",
+                                          names.get(names.size() - 1),
+                                          next == null ? ".asciiz" : ".ascii",
+                                          text));
+                e = next;
+            }
+        }
     }
 
-    public static String addGlobalVar(String varName) {
-        int varSize = 4;
-        String tmp = String.format("\t.data\n\t.align 2\n_%s:\t.space %d\n",
-                    varName, varSize);
-        return tmp;
+    // **********************************************************************
+    // chars
+    //    the characters of string literal lit, without its quotes; an
+    //    escape sequence is a single character
+    // **********************************************************************
+    private static List<String> chars(String lit) {
+        List<String> list = new ArrayList<String>();
+        for (int k = 1; k < lit.length() - 1; k++) {
+            if (lit.charAt(k) == '\\') {
+                list.add(lit.substring(k, k + 2));
+                k++;
+            } else {
+                list.add(lit.substring(k, k + 1));
+            }
+        }
+        return list;
     }
 }
@@ -0,0 +1,472 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+import java_cup.runtime.Scanner;
+import java_cup.runtime.Symbol;
+
+/**
+ * DirectLexer
+ *
+ * A scanner for C-- written by hand, which can be used instead of Yylex
+ * (-Dp6.scanner=direct): it finds the same tokens, with the same values,
+ * and reports the same errors at the same places, but it works straight
+ * on the source buffer rather than through the tables of a DFA.  Each
+ * token is scanned by a switch on its first character, identifiers and
+ * integer literals by a table of the classes of ASCII characters, and a
+ * keyword is told from an identifier by a perfect hash of its first and
+ * last characters and its length, and one comparison.
+ *
+ * The text of comments, which is much of a typical source, is skipped 16
+ * characters at a time when the scanner is given the bytes the source was
+ * read from (one for each character): it tests two longs of them at once
+ * for the newline that ends the comment (SWAR, "SIMD within a register").
+ * The newline found is then handled as before, as are the last few
+ * characters of the source; without the bytes, or with
+ * -Dp6.lexWords=false, comments are skipped a character at a time.  (Runs
+ * of blanks are short, and are skipped just as fast one at a time.)
+ *
+ * Like Yylex, it either returns a Symbol with a TokenVal for each token
+ * (next_token), or scans a whole source into a TokenStream (tokenize).
+ *
+ * The rules for bad string literals are those of cminusminus.jlex, which
+ * pick the longest of the strings they match (see string).  A character
+ * that is not ASCII, or a carriage return, is an illegal character
+ * (reported and skipped) outside of a comment or a string, and an
+ * ordinary one inside them, as it is for Yylex.
+ */
+class DirectLexer implements Scanner {
+    // classes of ASCII characters
+    private static final byte LETTER = 1;  // letters and _
+    private static final byte DIGIT = 2;
+    private static final byte ESCAPE = 4;  // characters escaped in strings
+    private static final byte[] CLASSES = new byte[128];
+
+    // whether to skip comments a word at a time
+    private static final boolean WORDS =
+        !"false".equals(System.getProperty("p6.lexWords"));
+
+    // the bytes of the source, read 8 at a time as a little-endian long
+    private static final VarHandle LONGS =
+        MethodHandles.byteArrayViewVarHandle(long[].class,
+                                             ByteOrder.LITTLE_ENDIAN);
+    private static final long LOW7 = 0x7F7F7F7F7F7F7F7FL;
+    private static final long HIGH = 0x8080808080808080L;
+    private static final long NEWLINES = 0x0A0A0A0A0A0A0A0AL;
+
+    // keywords (and their kinds) by hash
+    private static final char[][] KEYWORDS = new char[32][];
+    private static final int[] KEYWORD_KINDS = new int[32];
+
+    static {
+        for (char c = 'a'; c <= 'z'; c++) {
+            CLASSES[c] = LETTER;
+            CLASSES[c - 'a' + 'A'] = LETTER;
+        }
+        CLASSES['_'] = LETTER;
+        for (char c = '0'; c <= '9'; c++) {
+            CLASSES[c] = DIGIT;
+        }
+        for (char c : "nt'\"?\\".toCharArray()) {
+            CLASSES[c] |= ESCAPE;
+        }
+
+        keyword("bool", sym.BOOL);
+        keyword("int", sym.INT);
+        keyword("void", sym.VOID);
+        keyword("true", sym.TRUE);
+        keyword("false", sym.FALSE);
+        keyword("struct", sym.STRUCT);
+        keyword("cin", sym.CIN);
+        keyword("cout", sym.COUT);
+        keyword("if", sym.IF);
+        keyword("else", sym.ELSE);
+        keyword("while", sym.WHILE);
+        keyword("return", sym.RETURN);
+        keyword("repeat", sym.REPEAT);
+    }
+
+    private final char[] buf;
+    private final int end;
+    private int next;  // offset of the next character to scan
+
+    // the bytes of the source (bytes[k] for buf[k]), in which the high bit
+    // is set for each character that is not ASCII; or null
+    private final byte[] bytes;
+
+    // the token just scanned: its start offset and its value (as in a
+    // TokenStream), and the text of a string literal
+    private int tokStart;
+    private int tokValue;
+    private String tokString;
+
+    // in tokenize, the stream the tokens and messages are added to
+    private TokenStream tokens = null;
+
+    /**
+     * Makes a scanner for the part buf[start..end) of a source, which was
+     * read from bytes (or null if the characters are not one byte each).
+     */
+    DirectLexer(char[] buf, byte[] bytes, int start, int end) {
+        this.buf = buf;
+        this.bytes = WORDS ? bytes : null;
+        this.next = start;
+        this.end = end;
+    }
+
+    /**
+     * Scans all of the source in buf[0..length), which was read from bytes
+     * (or null), into a TokenStream, in parallel chunks if it is large (see
+     * TokenStream.scanChunks).
+     */
+    static TokenStream tokenize(char[] buf, final byte[] bytes, int length) {
+        return TokenStream.scanChunks(buf, length,
+                                      new TokenStream.ChunkScanner() {
+            public TokenStream scan(char[] buf, int start, int end) {
+                DirectLexer lexer = new DirectLexer(buf, bytes, start, end);
+                TokenStream tokens = new TokenStream();
+                lexer.tokens = tokens;
+                int kind;
+                while ((kind = lexer.scan()) != sym.EOF) {
+                    int value = lexer.tokValue;
+                    if (kind == sym.STRINGLITERAL) {
+                        value = tokens.addString(lexer.tokString);
+                    }
+                    tokens.add(kind, lexer.tokStart,
+                               lexer.next - lexer.tokStart, value);
+                }
+                return tokens;
+            }
+        });
+    }
+
+    /**
+     * Returns the next token, as Yylex would.
+     */
+    public Symbol next_token() {
+        int kind = scan();
+        switch (kind) {
+        case sym.EOF:
+            return new Symbol(sym.EOF);
+        case sym.ID:
+            return new Symbol(kind, new IdTokenVal(tokStart, tokValue));
+        case sym.INTLITERAL:
+            return new Symbol(kind, new IntLitTokenVal(tokStart, tokValue));
+        case sym.STRINGLITERAL:
+            return new Symbol(kind, new StrLitTokenVal(tokStart, tokString));
+        default:
+            return new Symbol(kind, new TokenVal(tokStart));
+        }
+    }
+
+    /**
+     * Scans the next token, and returns its kind (sym.EOF at the end).
+     */
+    private int scan() {
+        final char[] buf = this.buf;
+        int k = next;
+        while (k < end) {
+            int s = k;
+            char c = buf[k];
+            switch (c) {
+            case ' ':
+            case '\t':
+                k++;
+                while (k < end && (buf[k] == ' ' || buf[k] == '\t')) {
+                    k++;
+                }
+                continue;
+            case '\n':
+                k++;
+                continue;
+            case '#':
+                k = lineEnd(k + 1);
+                continue;
+            case '/':
+                if (k + 1 < end && buf[k + 1] == '/') {
+                    k = lineEnd(k + 2);
+                    continue;
+                }
+                return token(sym.DIVIDE, s, k + 1);
+            case '"':
+                k = string(s);
+                if (k < 0) {
+                    return token(sym.STRINGLITERAL, s, -k);
+                }
+                continue;
+            case '{':
+                return token(sym.LCURLY, s, k + 1);
+            case '}':
+                return token(sym.RCURLY, s, k + 1);
+            case '(':
+                return token(sym.LPAREN, s, k + 1);
+            case ')':
+                return token(sym.RPAREN, s, k + 1);
+            case ';':
+                return token(sym.SEMICOLON, s, k + 1);
+            case ',':
+                return token(sym.COMMA, s, k + 1);
+            case '.':
+                return token(sym.DOT, s, k + 1);
+            case '*':
+                return token(sym.TIMES, s, k + 1);
+            case '+':
+                if (followedBy(k, '+')) {
+                    return token(sym.PLUSPLUS, s, k + 2);
+                }
+                return token(sym.PLUS, s, k + 1);
+            case '-':
+                if (followedBy(k, '-')) {
+                    return token(sym.MINUSMINUS, s, k + 2);
+                }
+                return token(sym.MINUS, s, k + 1);
+            case '<':
+                if (followedBy(k, '<')) {
+                    return token(sym.WRITE, s, k + 2);
+                } else if (followedBy(k, '=')) {
+                    return token(sym.LESSEQ, s, k + 2);
+                }
+                return token(sym.LESS, s, k + 1);
+            case '>':
+                if (followedBy(k, '>')) {
+                    return token(sym.READ, s, k + 2);
+                } else if (followedBy(k, '=')) {
+                    return token(sym.GREATEREQ, s, k + 2);
+                }
+                return token(sym.GREATER, s, k + 1);
+            case '=':
+                if (followedBy(k, '=')) {
+                    return token(sym.EQUALS, s, k + 2);
+                }
+                return token(sym.ASSIGN, s, k + 1);
+            case '!':
+                if (followedBy(k, '=')) {
+                    return token(sym.NOTEQUALS, s, k + 2);
+                }
+                return token(sym.NOT, s, k + 1);
+            case '&':
+                if (followedBy(k, '&')) {
+                    return token(sym.AND, s, k + 2);
+                }
+                break;
+            case '|':
+                if (followedBy(k, '|')) {
+                    return token(sym.OR, s, k + 2);
+                }
+                break;
+            default:
+                if (c < 128 && (CLASSES[c] & LETTER) != 0) {
+                    return identifier(s);
+                } else if (c < 128 && (CLASSES[c] & DIGIT) != 0) {
+                    return intLiteral(s);
+                }
+            }
+            fatal(s, "illegal character ignored: " + c);
+            k++;
+        }
+        next = end;
+        return sym.EOF;
+    }
+
+    // the token of the given kind in buf[start..end)
+    private int token(int kind, int start, int end) {
+        tokStart = start;
+        tokValue = 0;
+        next = end;
+        return kind;
+    }
+
+    // whether the character after buf[k] is c
+    private boolean followedBy(int k, char c) {
+        return k + 1 < end && buf[k + 1] == c;
+    }
+
+    // the keyword or identifier that starts at s
+    private int identifier(int s) {
+        int k = s + 1;
+        char c;
+        while (k < end && (c = buf[k]) < 128 &&
+               (CLASSES[c] & (LETTER | DIGIT)) != 0) {
+            k++;
+        }
+        int len = k - s;
+        if (len >= 2 && len <= 6) {
+            int h = (buf[s] + buf[k - 1] + len) & 31;
+            char[] word = KEYWORDS[h];
+            if (word != null && word.length == len && matches(word, s)) {
+                return token(KEYWORD_KINDS[h], s, k);
+            }
+        }
+        int id = (tokens != null) ? tokens.intern(buf, s, k) :
+                                    Names.intern(buf, s, k);
+        token(sym.ID, s, k);
+        tokValue = id;
+        return sym.ID;
+    }
+
+    private boolean matches(char[] word, int s) {
+        for (int k = 0; k < word.length; k++) {
+            if (word[k] != buf[s + k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // the integer literal that starts at s; its value is accumulated until
+    // it is too large for an int
+    private int intLiteral(int s) {
+        long val = 0;
+        int k = s;
+        char c;
+        while (k < end && (c = buf[k]) >= '0' && c <= '9') {
+            if (val <= Integer.MAX_VALUE) {
+                val = 10 * val + (c - '0');
+            }
+            k++;
+        }
+        int intVal;
+        if (val > Integer.MAX_VALUE) {
+            warn(s, "integer literal too large; using max value");
+            intVal = Integer.MAX_VALUE;
+        } else {
+            intVal = (int)val;
+        }
+        token(sym.INTLITERAL, s, k);
+        tokValue = intVal;
+        return sym.INTLITERAL;
+    }
+
+    // reports an error (or a warning) at offset pos in the source; in
+    // tokenize, the stream holds it until the parser gets there
+    private void fatal(int pos, String msg) {
+        if (tokens != null) {
+            tokens.fatal(pos, msg);
+        } else {
+            ErrMsg.fatal(pos, msg);
+        }
+    }
+
+    private void warn(int pos, String msg) {
+        if (tokens != null) {
+            tokens.warn(pos, msg);
+        } else {
+            ErrMsg.warn(pos, msg);
+        }
+    }
+
+    // the offset of the newline (or the end) that ends the comment whose
+    // text starts at k
+    private int lineEnd(int k) {
+        if (bytes != null) {
+            // stops at a newline or a character that is not ASCII, for the
+            // loop below to handle
+            for (int last = end - 16; k <= last; k += 16) {
+                long w0 = (long)LONGS.get(bytes, k);
+                long w1 = (long)LONGS.get(bytes, k + 8);
+                long stop0 = zeros(w0 ^ NEWLINES) | (w0 & HIGH);
+                long stop1 = zeros(w1 ^ NEWLINES) | (w1 & HIGH);
+                if ((stop0 | stop1) != 0) {
+                    k += firstByte(stop0, stop1);
+                    break;
+                }
+            }
+        }
+        while (k < end && buf[k] != '\n') {
+            k++;
+        }
+        return k;
+    }
+
+    /**
+     * Scans the string literal that starts with the quote at s.  For a
+     * good one, sets tokString and returns minus the offset of its end;
+     * for a bad one, reports it and returns the offset at which to go on.
+     *
+     * Of the four rules for strings in cminusminus.jlex, the one that
+     * matches the most wins (the first of them, on a tie).  All start
+     * with the longest run of ordinary characters and good escapes after
+     * the quote (body), which ends:
+     *   at a quote: a good string;
+     *   at a newline or the end: an unterminated string;
+     *   at a backslash before a newline or the end: an unterminated
+     *     string with a bad escape, up to the backslash;
+     *   at a bad escape: a string with a bad escape, up to the next quote
+     *     on the line, or an unterminated string with a bad escape, up to
+     *     where a body after the bad escape ends (and a backslash there),
+     *     whichever is longer.
+     */
+    private int string(int s) {
+        int p = body(s + 1);
+        if (p < end && buf[p] == '"') {
+            tokString = new String(buf, s, p + 1 - s);
+            return -(p + 1);
+        } else if (p == end || buf[p] == '\n') {
+            fatal(s, "unterminated string literal ignored");
+            return p;
+        } else if (p + 1 == end || buf[p + 1] == '\n') {
+            fatal(s, "unterminated string literal with bad escaped " +
+                  "character ignored");
+            return p + 1;
+        }
+
+        int quote = p + 2;
+        while (quote < end && buf[quote] != '"' && buf[quote] != '\n') {
+            quote++;
+        }
+        int unterminated = body(p + 2);
+        if (unterminated < end && buf[unterminated] == '\\') {
+            unterminated++;
+        }
+        if (quote < end && buf[quote] == '"' && quote + 1 >= unterminated) {
+            fatal(s, "string literal with bad escaped character ignored");
+            return quote + 1;
+        }
+        fatal(s, "unterminated string literal with bad escaped " +
+              "character ignored");
+        return unterminated;
+    }
+
+    // the end of the longest run of characters other than newlines, quotes
+    // and backslashes, and of good escapes, from k
+    private int body(int k) {
+        while (k < end) {
+            char c = buf[k];
+            if (c == '"' || c == '\n') {
+                break;
+            } else if (c == '\\') {
+                if (k + 1 < end && buf[k + 1] < 128 &&
+                    (CLASSES[buf[k + 1]] & ESCAPE) != 0) {
+                    k += 2;
+                } else {
+                    break;
+                }
+            } else {
+                k++;
+            }
+        }
+        return k;
+    }
+
+    // 0x80 in each byte of w that is 0, and 0 in every other byte (exactly:
+    // no carry crosses from one byte into the next)
+    private static long zeros(long w) {
+        return ~(((w & LOW7) + LOW7) | w | LOW7);
+    }
+
+    // the index of the first of 16 bytes whose high bit is set in mask0
+    // (for the first 8) or mask1, one of which is not 0
+    private static int firstByte(long mask0, long mask1) {
+        if (mask0 != 0) {
+            return Long.numberOfTrailingZeros(mask0) >>> 3;
+        }
+        return 8 + (Long.numberOfTrailingZeros(mask1) >>> 3);
+    }
+
+    private static void keyword(String word, int kind) {
+        int h = (word.charAt(0) + word.charAt(word.length() - 1) +
+                 word.length()) & 31;
+        KEYWORDS[h] = word.toCharArray();
+        KEYWORD_KINDS[h] = kind;
+    }
+}
@@ -1,37 +1,96 @@
+import java.util.*;
+
 /**
  * ErrMsg
  *
  * This class is used to generate warning and fatal error messages.
+ *
+ * A thread can collect its messages instead of printing them (startBuffer
+ * and endBuffer), so that the messages for parts of the program analyzed
+ * in parallel can be printed in source order.  Buffers nest: printing
+ * the messages of an inner buffer adds them to the outer one.
  */
 class ErrMsg {
-	private static boolean err = false;
-
-	/**
-	 * Generates a fatal error message.
-	 * @param lineNum line number for error location
-	 * @param charNum character number (i.e., column) for error location
-	 * @param msg associated message for error
-	 */
-	static void fatal(int lineNum, int charNum, String msg) {
-		err = true;
-		System.err.println(lineNum + ":" + charNum + " ***ERROR*** " + msg);
-	}
-
-	/**
-	 * Generates a warning message.
-	 * @param lineNum line number for warning location
-	 * @param charNum character number (i.e., column) for warning location
-	 * @param msg associated message for warning
-	 */
-	static void warn(int lineNum, int charNum, String msg) {
-		System.err.println(lineNum + ":" + charNum + " ***WARNING*** " + msg);
-	}
-
-	/**
-	 * Returns the err flag.
-	 */
-	static boolean getErr() {
-		return err;
-	}
+    private static volatile boolean err = false;
+    private static ThreadLocal<Deque<List<String>>> buffers =
+        new ThreadLocal<Deque<List<String>>>() {
+            protected Deque<List<String>> initialValue() {
+                return new ArrayDeque<List<String>>();
+            }
+        };
+
+    /**
+     * Generates a fatal error message.
+     * @param lineNum line number for error location
+     * @param charNum character number (i.e., column) for error location
+     * @param msg associated message for error
+     */
+    static void fatal(int lineNum, int charNum, String msg) {
+        err = true;
+        emit(lineNum + ":" + charNum + " ***ERROR*** " + msg);
+    }
+
+    /**
+     * Generates a warning message.
+     * @param lineNum line number for warning location
+     * @param charNum character number (i.e., column) for warning location
+     * @param msg associated message for warning
+     */
+    static void warn(int lineNum, int charNum, String msg) {
+        emit(lineNum + ":" + charNum + " ***WARNING*** " + msg);
+    }
+
+    /**
+     * Generates a fatal error message for the given offset in the source.
+     */
+    static void fatal(int pos, String msg) {
+        fatal(LineMap.lineNum(pos), LineMap.charNum(pos), msg);
+    }
+
+    /**
+     * Generates a warning message for the given offset in the source.
+     */
+    static void warn(int pos, String msg) {
+        warn(LineMap.lineNum(pos), LineMap.charNum(pos), msg);
+    }
+
+    /**
+     * Returns the err flag.
+     */
+    static boolean getErr() {
+        return err;
+    }
+
+    /**
+     * Collects the messages generated by this thread from now on.
+     */
+    static void startBuffer() {
+        buffers.get().push(new ArrayList<String>());
+    }
+
+    /**
+     * Stops collecting this thread's messages (in the buffer started
+     * last) and returns them.
+     */
+    static List<String> endBuffer() {
+        return buffers.get().pop();
+    }
+
+    /**
+     * Prints messages collected by endBuffer.
+     */
+    static void print(List<String> msgs) {
+        for (String msg : msgs) {
+            emit(msg);
+        }
+    }
 
+    private static void emit(String msg) {
+        List<String> msgs = buffers.get().peek();
+        if (msgs != null) {
+            msgs.add(msg);
+        } else {
+            System.err.println(msg);
+        }
+    }
 }
@@ -0,0 +1,80 @@
+/**
+ * LineMap
+ *
+ * Maps offsets in the source file being compiled to line and character
+ * numbers.  Tokens and AST leaves record only the offset at which they
+ * start; the line (found by binary search in the table of the offsets at
+ * which lines start, built in one pass over the source) and the character
+ * number are only computed when a message needs them.
+ */
+class LineMap {
+    // position of things that are not in the source (line 0, char 0)
+    static final int NOWHERE = -1;
+
+    private static int[] lineStarts = { 0 };
+    private static int lines = 1;
+
+    /**
+     * Builds the table for the source text in buf[0..length).
+     */
+    static void build(char[] buf, int length) {
+        int[] starts = new int[64];
+        int n = 1;
+        for (int k = 0; k < length; k++) {
+            if (buf[k] == '\n') {
+                if (n == starts.length) {
+                    starts = java.util.Arrays.copyOf(starts, 2 * n);
+                }
+                starts[n++] = k + 1;
+            }
+        }
+        lineStarts = starts;
+        lines = n;
+    }
+
+    /**
+     * Returns the line number (from 1) of offset pos.
+     */
+    static int lineNum(int pos) {
+        if (pos < 0) {
+            return 0;
+        }
+        return line(pos) + 1;
+    }
+
+    /**
+     * Returns the character number on its line (from 1) of offset pos.
+     */
+    static int charNum(int pos) {
+        if (pos < 0) {
+            return 0;
+        }
+        return pos - lineStarts[line(pos)] + 1;
+    }
+
+    /**
+     * Returns the offset of the given line and character number (the
+     * inverse of lineNum and charNum).
+     */
+    static int pos(int lineNum, int charNum) {
+        if (lineNum <= 0 || lineNum > lines) {
+            return NOWHERE;
+        }
+        return lineStarts[lineNum - 1] + charNum - 1;
+    }
+
+    // index of the last line starting at or before pos
+    private static int line(int pos) {
+        int lo = 0;
+        int hi = lines - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (lineStarts[mid] <= pos) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * Names
+ *
+ * The compiler-wide table of identifier names.  Each distinct name is
+ * interned once and given a dense int id (0, 1, 2, ...), so that symbol
+ * tables can key on ints and every occurrence of a name shares one String.
+ * It is safe to use from several threads: interning takes a lock, but
+ * looking up the name for an id does not.
+ *
+ * A scanner working on one chunk of a large source (see
+ * TokenStream.scanChunks) does not intern into this table, which would
+ * make the chunks wait on each other's lock, but into a Table of its own;
+ * those names are interned here when the chunks are put back together.
+ */
+class Names {
+    private static final Table all = new Table();
+
+    /**
+     * Returns the id of the name in buf[start..end), interning it if it is
+     * new (only then is a String made for it).
+     */
+    static synchronized int intern(char[] buf, int start, int end) {
+        return all.intern(buf, start, end);
+    }
+
+    /**
+     * Returns the id of the given name, interning it if it is new.
+     */
+    static int intern(String name) {
+        return intern(name.toCharArray(), 0, name.length());
+    }
+
+    /**
+     * Returns the name with the given id.
+     */
+    static String name(int id) {
+        return all.name(id);
+    }
+
+    /**
+     * Table
+     *
+     * A table of names with dense ids, open-addressed (linear probing).
+     * Only one thread may intern into a table at a time; name can be
+     * called by any thread for an id that it has been given.
+     */
+    static class Table {
+        private volatile String[] names = new String[256];  // by id
+        private int[] hashes = new int[256];                // by id
+        private int count = 0;
+        private int[] slots = new int[512];  // id + 1, or 0 if free
+
+        /**
+         * Returns the id of the name in buf[start..end), adding it if it
+         * is new (only then is a String made for it).
+         */
+        int intern(char[] buf, int start, int end) {
+            int hash = 0;
+            for (int k = start; k < end; k++) {
+                hash = 31 * hash + buf[k];
+            }
+
+            String[] names = this.names;
+            int mask = slots.length - 1;
+            int slot = mix(hash) & mask;
+            while (slots[slot] != 0) {
+                int id = slots[slot] - 1;
+                if (hashes[id] == hash &&
+                    matches(names[id], buf, start, end)) {
+                    return id;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            if (count == names.length) {
+                names = java.util.Arrays.copyOf(names, 2 * count);
+                hashes = java.util.Arrays.copyOf(hashes, 2 * count);
+            }
+            names[count] = new String(buf, start, end - start);
+            this.names = names;
+            hashes[count] = hash;
+            slots[slot] = count + 1;
+            count++;
+            if (2 * count > slots.length) {
+                rehash();
+            }
+            return count - 1;
+        }
+
+        /**
+         * Returns the name with the given id.
+         */
+        String name(int id) {
+            return names[id];
+        }
+
+        /**
+         * Returns the number of names in the table (their ids are 0 up to
+         * it).
+         */
+        int size() {
+            return count;
+        }
+
+        private static boolean matches(String name, char[] buf, int start,
+                                       int end) {
+            if (name.length() != end - start) {
+                return false;
+            }
+            for (int k = 0; k < name.length(); k++) {
+                if (name.charAt(k) != buf[start + k]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int mix(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+
+        private void rehash() {
+            slots = new int[2 * slots.length];
+            int mask = slots.length - 1;
+            for (int id = 0; id < count; id++) {
+                int slot = mix(hashes[id]) & mask;
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = id + 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,1613 @@
+import java.util.*;
+
+// **********************************************************************
+// The Optimizer class performs whole-function optimization of the AST
+// for one function, after type checking and before code generation.
+//
+// The body of the function is lowered (by the "lower" methods of the AST
+// nodes) into a control-flow graph of BasicBlocks holding Instrs.  Local
+// int and bool variables are then put into SSA form using the dominator
+// tree and dominance frontiers, and two passes run over the SSA graph:
+//     sccp   sparse conditional constant propagation
+//     gvn    global value numbering over the dominator tree of the
+//            blocks that sccp found to be executable
+// and the induction variables of while loops are strength-reduced.
+//
+// Finally the AST is rewritten (by the "optimize" methods of the AST
+// nodes):
+//     - side-effect-free expressions with a constant value are replaced
+//       by literals, so if/while statements with a constant condition
+//       can drop the branch that is never taken
+//     - statements that can never be executed are removed
+//     - an expression that recomputes a value already computed on every
+//       path to it is replaced by a read of a compiler temporary that
+//       the first computation stores into
+//     - a product i*k of a loop's induction variable i and a constant k
+//       is replaced by a temporary that is set to i*k before the loop
+//       and increased by k times i's step wherever i is stepped; when i
+//       is then used only by the exit test, the test is rewritten
+//       against the temporary and i is no longer stepped
+//     - induction variables and their temporaries are kept in the saved
+//       registers (see Codegen.S) while there are registers left
+// **********************************************************************
+
+public class Optimizer {
+    // the function being optimized
+    private FnSym fnSym;
+
+    // the control-flow graph
+    private List<BasicBlock> blocks = new ArrayList<BasicBlock>();
+    private BasicBlock entry;
+    private BasicBlock current;
+
+    // dominator information (see computeDominators)
+    private List<BasicBlock> rpo;
+    private boolean pruned = false;
+
+    // local variables that are put into SSA form
+    private LinkedHashSet<TSym> vars = new LinkedHashSet<TSym>();
+
+    // link between the AST and the graph
+    private List<ExpNode> expNodes = new ArrayList<ExpNode>();
+    private HashMap<ExpNode, Instr> expInstrs = new HashMap<ExpNode, Instr>();
+    private HashMap<StmtNode, BasicBlock> stmtBlocks =
+        new HashMap<StmtNode, BasicBlock>();
+    private StmtNode currentStmt;
+    private LinkedHashMap<BasicBlock, StmtNode> loops =
+        new LinkedHashMap<BasicBlock, StmtNode>();
+    private HashMap<TSym, String> names = new HashMap<TSym, String>();
+
+    // rewrite decisions
+    private HashMap<Instr, Integer> literals = new HashMap<Instr, Integer>();
+    private HashMap<Instr, Instr> replacements = new HashMap<Instr, Instr>();
+    private HashSet<Instr> leaders = new HashSet<Instr>();
+    private HashMap<Instr, TSym> temps = new HashMap<Instr, TSym>();
+
+    // induction variable decisions
+    private HashMap<Instr, TSym> ivTemps = new HashMap<Instr, TSym>();
+    private HashMap<StmtNode, List<StmtNode>> before =
+        new HashMap<StmtNode, List<StmtNode>>();
+    private HashMap<StmtNode, List<StmtNode>> after =
+        new HashMap<StmtNode, List<StmtNode>>();
+    private HashSet<StmtNode> deadStmts = new HashSet<StmtNode>();
+    private List<TSym> regCandidates = new ArrayList<TSym>();
+
+    // repeat loops: the count of each (outer loops before the loops nested
+    // in them), the repeat loop each is nested in (if any), and the
+    // counter of each that is not unrolled completely
+    private LinkedHashMap<RepeatStmtNode, ExpNode> repeatCounts =
+        new LinkedHashMap<RepeatStmtNode, ExpNode>();
+    private HashMap<RepeatStmtNode, RepeatStmtNode> repeatOuter =
+        new HashMap<RepeatStmtNode, RepeatStmtNode>();
+    private HashMap<RepeatStmtNode, TSym> counters =
+        new HashMap<RepeatStmtNode, TSym>();
+    private RepeatStmtNode currentRepeat = null;
+
+    private int numInstrs = 0;
+
+    public Optimizer(FnSym sym) {
+        fnSym = sym;
+        entry = newBlock();
+        current = entry;
+    }
+
+    // **********************************************************************
+    // **********************************************************************
+    // LOWERING OPERATIONS (used by the "lower" methods of the AST nodes)
+    // **********************************************************************
+    // **********************************************************************
+
+    public BasicBlock newBlock() {
+        BasicBlock b = new BasicBlock(blocks.size());
+        blocks.add(b);
+        return b;
+    }
+
+    public void setBlock(BasicBlock b) {
+        current = b;
+    }
+
+    // **********************************************************************
+    // startStmt
+    //    record the block in which statement s starts, so that statements
+    //    that can never be executed can be removed
+    // **********************************************************************
+    public void startStmt(StmtNode s) {
+        stmtBlocks.put(s, current);
+        currentStmt = s;
+    }
+
+    // **********************************************************************
+    // startLoop
+    //    record that the loop statement s tests its condition in block
+    //    header
+    // **********************************************************************
+    public void startLoop(StmtNode s, BasicBlock header) {
+        loops.put(header, s);
+    }
+
+    // **********************************************************************
+    // startRepeat, endRepeat
+    //    record that the body of the repeat loop s, which runs count times,
+    //    is lowered between these calls
+    // **********************************************************************
+    public void startRepeat(RepeatStmtNode s, ExpNode count) {
+        repeatCounts.put(s, count);
+        repeatOuter.put(s, currentRepeat);
+        currentRepeat = s;
+    }
+
+    public void endRepeat(RepeatStmtNode s) {
+        currentRepeat = repeatOuter.get(s);
+    }
+
+    // **********************************************************************
+    // constant
+    //    the value of a literal
+    // **********************************************************************
+    public Instr constant(int val, ExpNode node) {
+        Instr i = add(Instr.CONST, node);
+        i.value = val;
+        return i;
+    }
+
+    // **********************************************************************
+    // opaque
+    //    a value that is not known at compile time; pure is false if
+    //    computing it has side effects (e.g., a call)
+    // **********************************************************************
+    public Instr opaque(ExpNode node, boolean pure) {
+        Instr i = add(Instr.OPAQUE, null);
+        i.pure = pure;
+        if (pure) {
+            register(node, i);
+        }
+        return i;
+    }
+
+    public Instr load(TSym sym, ExpNode node) {
+        if (!isTracked(sym)) {
+            return opaque(node, true);
+        }
+        vars.add(sym);
+        if (node instanceof IdNode) {
+            names.put(sym, ((IdNode)node).name());
+        }
+        Instr i = add(Instr.LOAD, node, new Instr[1]);
+        i.var = sym;
+        return i;
+    }
+
+    public void store(TSym sym, Instr val) {
+        if (isTracked(sym)) {
+            vars.add(sym);
+            Instr i = add(Instr.STORE, null, val);
+            i.var = sym;
+            i.stmt = currentStmt;
+        }
+    }
+
+    // **********************************************************************
+    // assign
+    //    the value of an assignment expression: the value assigned, but
+    //    never pure
+    // **********************************************************************
+    public Instr assign(Instr val) {
+        Instr i = add(Instr.COPY, null, val);
+        i.pure = false;
+        return i;
+    }
+
+    public Instr unary(int op, Instr a, ExpNode node) {
+        Instr i = add(op, null, a);
+        i.pure = a.pure;
+        i.kids = i.args;
+        register(node, i);
+        return i;
+    }
+
+    public Instr binary(int op, Instr a, Instr b, ExpNode node) {
+        Instr i = add(op, null, a, b);
+        i.pure = a.pure && b.pure;
+        i.kids = i.args;
+        register(node, i);
+        return i;
+    }
+
+    // **********************************************************************
+    // shortCircuit
+    //    lower "lhs && rhs" (isAnd is true) or "lhs || rhs" (isAnd is
+    //    false); rhs is only evaluated if needed, and the value of the
+    //    whole expression is a phi in the block where the two paths join
+    // **********************************************************************
+    public Instr shortCircuit(boolean isAnd, ExpNode lhs, ExpNode rhs,
+                              ExpNode node) {
+        Instr left = lhs.lower(this);
+        Instr skip = constant(isAnd ? 0 : 1, null);
+        BasicBlock from = current;
+        BasicBlock right = newBlock();
+        BasicBlock join = newBlock();
+
+        if (isAnd) {
+            branch(left, right, join);
+        } else {
+            branch(left, join, right);
+        }
+
+        setBlock(right);
+        Instr val = rhs.lower(this);
+        BasicBlock rightEnd = current;
+        jump(join);
+
+        setBlock(join);
+        Instr phi = new Instr(numInstrs++, Instr.PHI, join,
+                              new Instr[join.preds.size()]);
+        phi.args[join.preds.indexOf(from)] = skip;
+        phi.args[join.preds.indexOf(rightEnd)] = val;
+        phi.kids = new Instr[] { left, val };
+        phi.pure = left.pure && val.pure;
+        join.instrs.add(phi);
+        register(node, phi);
+        return phi;
+    }
+
+    public void branch(Instr cond, BasicBlock trueBlock,
+                       BasicBlock falseBlock) {
+        add(Instr.BRANCH, null, cond);
+        edge(current, trueBlock);
+        edge(current, falseBlock);
+        current = null;
+    }
+
+    public void jump(BasicBlock b) {
+        edge(current, b);
+        current = null;
+    }
+
+    // **********************************************************************
+    // ret
+    //    end the current block with a return; any code that follows goes
+    //    in a new block that has no predecessors
+    // **********************************************************************
+    public void ret() {
+        current = newBlock();
+    }
+
+    private void edge(BasicBlock from, BasicBlock to) {
+        from.succs.add(to);
+        to.preds.add(from);
+    }
+
+    private Instr add(int op, ExpNode node, Instr... args) {
+        Instr i = new Instr(numInstrs++, op, current, args);
+        current.instrs.add(i);
+        register(node, i);
+        return i;
+    }
+
+    private void register(ExpNode node, Instr i) {
+        if (node == null || !i.pure) {
+            return;
+        }
+        i.node = node;
+        expNodes.add(node);
+        expInstrs.put(node, i);
+        if (i.kids != null) {
+            for (Instr kid : i.kids) {
+                if (kid.node != null) {
+                    kid.parent = i;
+                }
+            }
+        }
+    }
+
+    // **********************************************************************
+    // isTracked
+    //    only int and bool locals and parameters can be put in SSA form;
+    //    globals can be changed by calls and struct fields live in memory
+    // **********************************************************************
+    private boolean isTracked(TSym sym) {
+        if (sym == null || sym.offset == 1 || sym instanceof StructSym) {
+            return false;
+        }
+        Type type = sym.getType();
+        return type.isIntType() || type.isBoolType();
+    }
+
+    // **********************************************************************
+    // **********************************************************************
+    // ANALYSIS
+    // **********************************************************************
+    // **********************************************************************
+
+    // **********************************************************************
+    // run
+    //    build SSA form for the lowered function body, then run sccp and
+    //    gvn, find the induction variables, and decide how the AST is to be
+    //    rewritten
+    // **********************************************************************
+    public void run() {
+        removeUnreachable();
+        computeDominators();
+        placePhis();
+        rename();
+        sccp();
+
+        pruned = true;
+        computeDominators();
+        gvn();
+        decide();
+        allocateCounters();
+        reduceInductionVars();
+        allocateRegisters();
+    }
+
+    // **********************************************************************
+    // removeUnreachable
+    //    blocks that follow a return statement have no path from the
+    //    entry; drop their edges into reachable blocks
+    // **********************************************************************
+    private void removeUnreachable() {
+        HashSet<BasicBlock> reached = new HashSet<BasicBlock>();
+        ArrayDeque<BasicBlock> work = new ArrayDeque<BasicBlock>();
+        work.push(entry);
+        reached.add(entry);
+        while (!work.isEmpty()) {
+            for (BasicBlock s : work.pop().succs) {
+                if (reached.add(s)) {
+                    work.push(s);
+                }
+            }
+        }
+
+        for (BasicBlock b : blocks) {
+            b.reachable = reached.contains(b);
+            for (int k = b.preds.size() - 1; k >= 0; k--) {
+                if (!reached.contains(b.preds.get(k))) {
+                    b.preds.remove(k);
+                    for (Instr i : b.instrs) {
+                        if (i.op == Instr.PHI) {
+                            i.args = without(i.args, k);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static Instr[] without(Instr[] args, int k) {
+        Instr[] tmp = new Instr[args.length - 1];
+        System.arraycopy(args, 0, tmp, 0, k);
+        System.arraycopy(args, k + 1, tmp, k, args.length - k - 1);
+        return tmp;
+    }
+
+    // **********************************************************************
+    // livePred
+    //    is the edge from b's k-th predecessor to b part of the graph?
+    //    once sccp has run, only executable edges are
+    // **********************************************************************
+    private boolean livePred(BasicBlock b, int k) {
+        return b.preds.get(k).rpo >= 0 && (!pruned || b.execPred[k]);
+    }
+
+    private boolean liveEdge(BasicBlock from, BasicBlock to) {
+        for (int k = 0; k < to.preds.size(); k++) {
+            if (to.preds.get(k) == from && (!pruned || to.execPred[k])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // **********************************************************************
+    // computeDominators
+    //    compute a reverse postorder of the graph, the immediate dominator
+    //    of each block (Cooper, Harvey and Kennedy's iterative algorithm)
+    //    and the dominance frontier of each block
+    // **********************************************************************
+    private void computeDominators() {
+        for (BasicBlock b : blocks) {
+            b.rpo = -1;
+            b.idom = null;
+            b.domKids = new ArrayList<BasicBlock>();
+            b.frontier = new ArrayList<BasicBlock>();
+        }
+
+        // postorder by iterative depth-first search
+        List<BasicBlock> order = new ArrayList<BasicBlock>();
+        HashSet<BasicBlock> seen = new HashSet<BasicBlock>();
+        ArrayDeque<BasicBlock> stack = new ArrayDeque<BasicBlock>();
+        ArrayDeque<Integer> next = new ArrayDeque<Integer>();
+        stack.push(entry);
+        next.push(0);
+        seen.add(entry);
+        while (!stack.isEmpty()) {
+            BasicBlock b = stack.peek();
+            int k = next.pop();
+            if (k < b.succs.size()) {
+                next.push(k + 1);
+                BasicBlock s = b.succs.get(k);
+                if (!seen.contains(s) && liveEdge(b, s)) {
+                    seen.add(s);
+                    stack.push(s);
+                    next.push(0);
+                }
+            } else {
+                order.add(stack.pop());
+            }
+        }
+        Collections.reverse(order);
+        for (int k = 0; k < order.size(); k++) {
+            order.get(k).rpo = k;
+        }
+        rpo = order;
+
+        entry.idom = entry;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (BasicBlock b : rpo) {
+                if (b == entry) {
+                    continue;
+                }
+                BasicBlock idom = null;
+                for (int k = 0; k < b.preds.size(); k++) {
+                    BasicBlock p = b.preds.get(k);
+                    if (livePred(b, k) && p.idom != null) {
+                        idom = (idom == null) ? p : intersect(p, idom);
+                    }
+                }
+                if (b.idom != idom) {
+                    b.idom = idom;
+                    changed = true;
+                }
+            }
+        }
+
+        for (BasicBlock b : rpo) {
+            if (b != entry) {
+                b.idom.domKids.add(b);
+            }
+        }
+
+        for (BasicBlock b : rpo) {
+            int live = 0;
+            for (int k = 0; k < b.preds.size(); k++) {
+                if (livePred(b, k)) {
+                    live++;
+                }
+            }
+            if (live < 2) {
+                continue;
+            }
+            for (int k = 0; k < b.preds.size(); k++) {
+                if (!livePred(b, k)) {
+                    continue;
+                }
+                BasicBlock runner = b.preds.get(k);
+                while (runner != b.idom) {
+                    if (!runner.frontier.contains(b)) {
+                        runner.frontier.add(b);
+                    }
+                    runner = runner.idom;
+                }
+            }
+        }
+    }
+
+    private static BasicBlock intersect(BasicBlock a, BasicBlock b) {
+        while (a != b) {
+            while (a.rpo > b.rpo) {
+                a = a.idom;
+            }
+            while (b.rpo > a.rpo) {
+                b = b.idom;
+            }
+        }
+        return a;
+    }
+
+    // **********************************************************************
+    // placePhis
+    //    insert a phi for each tracked variable at the iterated dominance
+    //    frontier of the blocks that assign to it
+    // **********************************************************************
+    private void placePhis() {
+        for (TSym var : vars) {
+            HashSet<BasicBlock> hasPhi = new HashSet<BasicBlock>();
+            HashSet<BasicBlock> queued = new HashSet<BasicBlock>();
+            ArrayDeque<BasicBlock> work = new ArrayDeque<BasicBlock>();
+            queued.add(entry);
+            work.add(entry);
+            for (BasicBlock b : rpo) {
+                for (Instr i : b.instrs) {
+                    if (i.op == Instr.STORE && i.var == var && queued.add(b)) {
+                        work.add(b);
+                    }
+                }
+            }
+
+            while (!work.isEmpty()) {
+                for (BasicBlock f : work.poll().frontier) {
+                    if (hasPhi.add(f)) {
+                        Instr phi = new Instr(numInstrs++, Instr.PHI, f,
+                                              new Instr[f.preds.size()]);
+                        phi.var = var;
+                        f.instrs.add(0, phi);
+                        if (queued.add(f)) {
+                            work.add(f);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // **********************************************************************
+    // rename
+    //    walk the dominator tree linking each load of a variable to the
+    //    definition that reaches it, and filling in phi arguments
+    // **********************************************************************
+    private void rename() {
+        HashMap<TSym, ArrayDeque<Instr>> defs =
+            new HashMap<TSym, ArrayDeque<Instr>>();
+        int k = 0;
+        for (TSym var : vars) {
+            Instr i = new Instr(numInstrs++, Instr.ENTRY, entry, new Instr[0]);
+            i.var = var;
+            entry.instrs.add(k++, i);
+            defs.put(var, new ArrayDeque<Instr>());
+        }
+
+        HashMap<BasicBlock, List<TSym>> pushed =
+            new HashMap<BasicBlock, List<TSym>>();
+        ArrayDeque<BasicBlock> work = new ArrayDeque<BasicBlock>();
+        work.push(entry);
+        while (!work.isEmpty()) {
+            BasicBlock b = work.pop();
+            List<TSym> done = pushed.remove(b);
+            if (done != null) {     // leaving b: pop its definitions
+                for (TSym var : done) {
+                    defs.get(var).pop();
+                }
+                continue;
+            }
+
+            done = new ArrayList<TSym>();
+            for (Instr i : b.instrs) {
+                if (i.op == Instr.LOAD) {
+                    i.args[0] = defs.get(i.var).peek();
+                } else if (i.var != null && i.op != Instr.LOAD) {
+                    defs.get(i.var).push(i.op == Instr.STORE ? i.args[0] : i);
+                    done.add(i.var);
+                }
+            }
+            for (BasicBlock s : b.succs) {
+                for (int j = 0; j < s.preds.size(); j++) {
+                    if (s.preds.get(j) != b) {
+                        continue;
+                    }
+                    for (Instr phi : s.instrs) {
+                        if (phi.op == Instr.PHI && phi.var != null) {
+                            phi.args[j] = defs.get(phi.var).peek();
+                        }
+                    }
+                }
+            }
+
+            pushed.put(b, done);
+            work.push(b);
+            for (int j = b.domKids.size() - 1; j >= 0; j--) {
+                work.push(b.domKids.get(j));
+            }
+        }
+    }
+
+    // **********************************************************************
+    // sccp
+    //    Wegman and Zadeck's sparse conditional constant propagation:
+    //    values start at TOP and are only lowered, and only blocks reached
+    //    by edges that can be taken are evaluated
+    // **********************************************************************
+    private void sccp() {
+        for (BasicBlock b : rpo) {
+            b.execPred = new boolean[b.preds.size()];
+            for (Instr i : b.instrs) {
+                for (Instr a : i.args) {
+                    if (a != null) {
+                        a.uses.add(i);
+                    }
+                }
+            }
+        }
+
+        ArrayDeque<BasicBlock[]> flow = new ArrayDeque<BasicBlock[]>();
+        ArrayDeque<Instr> ssa = new ArrayDeque<Instr>();
+        flow.add(new BasicBlock[] { null, entry });
+        while (!flow.isEmpty() || !ssa.isEmpty()) {
+            while (!flow.isEmpty()) {
+                BasicBlock[] e = flow.poll();
+                BasicBlock to = e[1];
+                if (e[0] != null) {
+                    boolean fresh = false;
+                    for (int k = 0; k < to.preds.size(); k++) {
+                        if (to.preds.get(k) == e[0] && !to.execPred[k]) {
+                            to.execPred[k] = true;
+                            fresh = true;
+                        }
+                    }
+                    if (!fresh) {
+                        continue;
+                    }
+                }
+
+                if (!to.executable) {
+                    to.executable = true;
+                    for (Instr i : to.instrs) {
+                        visit(i, flow, ssa);
+                    }
+                    if (to.succs.size() == 1) {
+                        flow.add(new BasicBlock[] { to, to.succs.get(0) });
+                    }
+                } else {
+                    for (Instr i : to.instrs) {
+                        if (i.op == Instr.PHI) {
+                            visit(i, flow, ssa);
+                        }
+                    }
+                }
+            }
+
+            while (!ssa.isEmpty()) {
+                for (Instr u : ssa.poll().uses) {
+                    if (u.block.executable) {
+                        visit(u, flow, ssa);
+                    }
+                }
+            }
+        }
+    }
+
+    private void visit(Instr i, ArrayDeque<BasicBlock[]> flow,
+                       ArrayDeque<Instr> ssa) {
+        if (i.op == Instr.BRANCH) {
+            Instr c = i.args[0];
+            if (c.state == Instr.BOTTOM || c.state == Instr.CONST_VAL &&
+                c.constVal != 0) {
+                flow.add(new BasicBlock[] { i.block, i.block.succs.get(0) });
+            }
+            if (c.state == Instr.BOTTOM || c.state == Instr.CONST_VAL &&
+                c.constVal == 0) {
+                flow.add(new BasicBlock[] { i.block, i.block.succs.get(1) });
+            }
+            return;
+        }
+
+        int oldState = i.state;
+        switch (i.op) {
+        case Instr.CONST:
+            i.lower(Instr.CONST_VAL, i.value);
+            break;
+        case Instr.OPAQUE:
+        case Instr.ENTRY:
+            i.lower(Instr.BOTTOM, 0);
+            break;
+        case Instr.LOAD:
+        case Instr.COPY:
+            i.lower(i.args[0].state, i.args[0].constVal);
+            break;
+        case Instr.PHI:
+            for (int k = 0; k < i.args.length; k++) {
+                if (i.block.execPred[k]) {
+                    i.lower(i.args[k].state, i.args[k].constVal);
+                }
+            }
+            break;
+        case Instr.STORE:
+            break;
+        default:
+            boolean top = false;
+            boolean bottom = false;
+            for (Instr a : i.args) {
+                top = top || a.state == Instr.TOP;
+                bottom = bottom || a.state == Instr.BOTTOM;
+            }
+            if (bottom) {
+                i.lower(Instr.BOTTOM, 0);
+            } else if (top) {
+                break;      // wait until the operands are known
+            } else if (!i.canFold()) {
+                i.lower(Instr.BOTTOM, 0);
+            } else {
+                i.lower(Instr.CONST_VAL, i.fold());
+            }
+        }
+        if (i.state != oldState) {
+            ssa.add(i);
+        }
+    }
+
+    // **********************************************************************
+    // gvn
+    //    dominator-based global value numbering: walking the dominator tree
+    //    of the executable blocks, an instruction gets the value number of
+    //    an earlier instruction that computes the same operation on the
+    //    same value numbers in a dominating position.  Branch conditions
+    //    are also known to be true (false) in the blocks dominated by the
+    //    true (false) target of the branch when that target has no other
+    //    predecessors.
+    // **********************************************************************
+    private void gvn() {
+        HashMap<String, Instr> table = new HashMap<String, Instr>();
+        HashMap<Instr, Instr> reps = new HashMap<Instr, Instr>();
+        HashMap<Instr, Integer> facts = new HashMap<Instr, Integer>();
+        HashMap<BasicBlock, List<Object>> scopes =
+            new HashMap<BasicBlock, List<Object>>();
+
+        ArrayDeque<BasicBlock> work = new ArrayDeque<BasicBlock>();
+        work.push(entry);
+        while (!work.isEmpty()) {
+            BasicBlock b = work.pop();
+            List<Object> scope = scopes.remove(b);
+            if (scope != null) {    // leaving b: forget what it added
+                for (Object o : scope) {
+                    table.remove(o);
+                    reps.remove(o);
+                    facts.remove(o);
+                }
+                continue;
+            }
+
+            scope = new ArrayList<Object>();
+            BasicBlock pred = null;
+            for (int k = 0; k < b.preds.size(); k++) {
+                if (livePred(b, k)) {
+                    pred = (pred == null) ? b.preds.get(k) : b;
+                }
+            }
+            if (pred != null && pred != b && pred.succs.size() == 2) {
+                Instr last = pred.instrs.get(pred.instrs.size() - 1);
+                if (last.args[0].vn != null &&
+                    !facts.containsKey(last.args[0].vn)) {
+                    facts.put(last.args[0].vn, b == pred.succs.get(0) ? 1 : 0);
+                    scope.add(last.args[0].vn);
+                }
+            }
+
+            for (Instr i : b.instrs) {
+                number(i, table, scope);
+                if (i.vn == null) {
+                    continue;
+                }
+                if (facts.containsKey(i.vn)) {
+                    i.known = facts.get(i.vn);
+                }
+                if (i.node != null) {
+                    i.rep = reps.get(i.vn);
+                    if (i.rep == null) {
+                        i.rep = i;
+                        reps.put(i.vn, i);
+                        scope.add(i.vn);
+                    }
+                }
+            }
+
+            scopes.put(b, scope);
+            work.push(b);
+            for (int j = b.domKids.size() - 1; j >= 0; j--) {
+                work.push(b.domKids.get(j));
+            }
+        }
+    }
+
+    // **********************************************************************
+    // number
+    //    set the value number of instruction i
+    // **********************************************************************
+    private void number(Instr i, HashMap<String, Instr> table,
+                        List<Object> scope) {
+        String key;
+        switch (i.op) {
+        case Instr.STORE:
+        case Instr.BRANCH:
+            return;
+        case Instr.LOAD:
+        case Instr.COPY:
+            i.vn = i.args[0].vn;
+            return;
+        case Instr.OPAQUE:
+        case Instr.ENTRY:
+            i.vn = i;
+            return;
+        case Instr.CONST:
+            key = "k" + i.value;
+            break;
+        case Instr.PHI:
+            Instr same = null;
+            key = "p" + i.block.id;
+            for (int k = 0; k < i.args.length; k++) {
+                if (!i.block.execPred[k]) {
+                    continue;
+                }
+                if (i.args[k].vn == null) {     // from a loop back edge
+                    i.vn = i;
+                    return;
+                }
+                same = (same == null || same == i.args[k].vn) ? i.args[k].vn
+                                                               : i;
+                key += " " + i.args[k].vn.id;
+            }
+            if (same != null && same != i) {
+                i.vn = same;
+                return;
+            }
+            break;
+        default:
+            int op = i.op;
+            Instr a = i.args[0].vn;
+            Instr b = (i.args.length > 1) ? i.args[1].vn : null;
+            if (op == Instr.GT || op == Instr.GE) {     // a > b is b < a
+                op = (op == Instr.GT) ? Instr.LT : Instr.LE;
+                Instr tmp = a;
+                a = b;
+                b = tmp;
+            } else if (Instr.isCommutative(op) && a.id > b.id) {
+                Instr tmp = a;
+                a = b;
+                b = tmp;
+            }
+            key = op + " " + a.id + (b == null ? "" : " " + b.id);
+        }
+
+        if (i.state == Instr.CONST_VAL) {
+            key = "k" + i.constVal;
+        }
+        i.vn = table.get(key);
+        if (i.vn == null) {
+            i.vn = i;
+            table.put(key, i);
+            scope.add(key);
+        }
+    }
+
+    // **********************************************************************
+    // decide
+    //    decide which expressions of the AST become literals, and which are
+    //    replaced by a read of the temporary holding an earlier equal value
+    // **********************************************************************
+    private void decide() {
+        HashSet<Instr> removed = new HashSet<Instr>();
+        List<Instr> candidates = new ArrayList<Instr>();
+        for (ExpNode exp : expNodes) {
+            Instr i = expInstrs.get(exp);
+            if (!i.block.executable || i.op == Instr.CONST) {
+                continue;
+            }
+            if (i.state == Instr.CONST_VAL) {
+                literals.put(i, i.constVal);
+                removed.add(i);
+            } else if (i.known != null) {
+                literals.put(i, i.known);
+                removed.add(i);
+            } else if (i.rep != null && i.rep != i && i.isComputation() &&
+                       i.rep.isComputation()) {
+                replacements.put(i, i.rep);
+                removed.add(i);
+                candidates.add(i);
+            }
+        }
+
+        // the earlier computation must itself still be evaluated
+        for (Instr i : candidates) {
+            Instr rep = i.rep;
+            boolean ok = !removed.contains(rep);
+            for (Instr a = rep.parent; ok && a != null; a = a.parent) {
+                ok = !removed.contains(a);
+            }
+            if (ok) {
+                leaders.add(rep);
+            } else {
+                replacements.remove(i);
+                removed.remove(i);
+            }
+        }
+    }
+
+    // **********************************************************************
+    // reduceInductionVars
+    //    find the basic induction variables of each while loop: the
+    //    tracked variables whose value on the loop's back edge is their
+    //    value at the loop header plus or minus a constant
+    // **********************************************************************
+    private void reduceInductionVars() {
+        for (Map.Entry<BasicBlock, StmtNode> e : loops.entrySet()) {
+            BasicBlock header = e.getKey();
+            if (!header.executable) {
+                continue;
+            }
+            int latch = -1;
+            for (int k = 0; k < header.preds.size(); k++) {
+                if (livePred(header, k) &&
+                    dominates(header, header.preds.get(k))) {
+                    latch = (latch == -1) ? k : -2;
+                }
+            }
+            if (latch < 0) {    // the loop body never gets back to the test
+                continue;
+            }
+
+            HashSet<BasicBlock> body = loopBody(header,
+                                                header.preds.get(latch));
+            for (Instr phi : header.instrs) {
+                if (phi.op == Instr.PHI && phi.var != null &&
+                    phi.state == Instr.BOTTOM) {
+                    reduce(e.getValue(), phi, latch, body);
+                }
+            }
+        }
+    }
+
+    // **********************************************************************
+    // reduce
+    //    if phi (a variable's value at the header of loop) is a basic
+    //    induction variable, strength-reduce the products of it and a
+    //    constant in the loop's body; the latch-th argument of phi is the
+    //    value that comes round the loop
+    // **********************************************************************
+    private void reduce(StmtNode loop, Instr phi, int latch,
+                        HashSet<BasicBlock> body) {
+        Instr step = phi.args[latch];
+        if (step.op != Instr.ADD && step.op != Instr.SUB ||
+            !body.contains(step.block)) {
+            return;
+        }
+        Instr old = step.args[0];
+        Instr inc = step.args[1];
+        if (step.op == Instr.ADD && !isCurrent(old, phi, step)) {
+            old = step.args[1];
+            inc = step.args[0];
+        }
+        if (!isCurrent(old, phi, step) || old.args[0] != phi ||
+            inc.state != Instr.CONST_VAL || inc.constVal == 0) {
+            return;
+        }
+        int delta = (step.op == Instr.ADD) ? inc.constVal : -inc.constVal;
+
+        // the statement that steps the variable must be a plain step (i++,
+        // i--, or i = i + c), so that the temporaries can be updated right
+        // after it: nothing else in it may read the variable, which would
+        // see a temporary that has not been updated yet
+        StmtNode stepStmt = null;
+        for (Instr u : step.uses) {
+            if (u.op == Instr.STORE && u.var == phi.var) {
+                stepStmt = u.stmt;
+            }
+        }
+        if (!(stepStmt instanceof PostIncStmtNode ||
+              stepStmt instanceof PostDecStmtNode ||
+              stepStmt instanceof AssignStmtNode &&
+              ((AssignStmtNode)stepStmt).isStep(phi.var))) {
+            return;
+        }
+
+        // products of the variable and a constant, grouped by the
+        // constant, and comparisons of the variable with a constant
+        LinkedHashMap<Integer, List<Instr>> products =
+            new LinkedHashMap<Integer, List<Instr>>();
+        List<Instr> compareVars = new ArrayList<Instr>();
+        List<Instr> bounds = new ArrayList<Instr>();
+        HashSet<Instr> uses = new HashSet<Instr>();
+        uses.add(old);
+        for (BasicBlock b : rpo) {
+            if (!body.contains(b)) {
+                continue;
+            }
+            for (Instr i : b.instrs) {
+                boolean compare = i.op >= Instr.EQ && i.op <= Instr.GE;
+                if (i.op != Instr.MUL && !compare || i.node == null ||
+                    i.state != Instr.BOTTOM || i.known != null ||
+                    replacements.containsKey(i)) {
+                    continue;
+                }
+                Instr x = i.args[0];
+                Instr k = i.args[1];
+                if (isCurrent(k, phi, step)) {
+                    x = i.args[1];
+                    k = i.args[0];
+                }
+                if (!isCurrent(x, phi, step) || k.state != Instr.CONST_VAL) {
+                    continue;
+                }
+                if (!compare && k.constVal != 0 && k.constVal != 1) {
+                    if (!products.containsKey(k.constVal)) {
+                        products.put(k.constVal, new ArrayList<Instr>());
+                    }
+                    products.get(k.constVal).add(i);
+                    uses.add(x);
+                } else if (compare && x.node != null && k.node != null) {
+                    compareVars.add(x);
+                    bounds.add(k);
+                }
+            }
+        }
+        if (products.isEmpty()) {
+            return;
+        }
+
+        // the value on entry to the loop, if it is a known constant
+        Instr start = null;
+        for (int k = 0; k < phi.args.length; k++) {
+            if (k != latch && phi.block.execPred[k]) {
+                Instr a = phi.args[k];
+                start = (start == null || start.state == Instr.CONST_VAL &&
+                         a.state == Instr.CONST_VAL &&
+                         a.constVal == start.constVal) ? a : phi;
+            }
+        }
+
+        // the values the variable can take, if the loop's test bounds them;
+        // its comparisons are only scaled if none of them overflows
+        long[] range = range(phi, start, delta, body);
+
+        List<StmtNode> init = stmtList(before, loop);
+        List<StmtNode> update = stmtList(after, stepStmt);
+        List<TSym> regs = new ArrayList<TSym>();
+        TSym reduced = null;
+        int factor = 0;
+        for (Map.Entry<Integer, List<Instr>> e : products.entrySet()) {
+            int k = e.getKey();
+            TSym t = newTemp(Type.INT);
+            for (Instr m : e.getValue()) {
+                ivTemps.put(m, t);
+                if (leaders.remove(m)) {    // later copies read t instead
+                    temps.put(m, t);
+                }
+            }
+            if (start.state == Instr.CONST_VAL) {
+                init.add(assignStmt(t, new IntLitNode(LineMap.NOWHERE,
+                                                      start.constVal * k)));
+            } else {
+                init.add(assignStmt(t, new TimesNode(idNode(phi.var, null),
+                                    new IntLitNode(LineMap.NOWHERE, k))));
+            }
+            // t steps on with the variable, even after the product is last
+            // used, so it wraps round (as the product would) instead of
+            // trapping
+            update.add(assignStmt(t, new PlusNode(idNode(t, null),
+                                  new IntLitNode(LineMap.NOWHERE, delta * k),
+                                  true)));
+            regs.add(t);
+            if (reduced == null && k > 0 && scaledFit(bounds, k) &&
+                scaledFit(range, k)) {
+                reduced = t;
+                factor = k;
+            }
+        }
+
+        // if the variable is only used to step it, to compute the products
+        // and in comparisons with constants, compare the reduced variable
+        // instead and stop stepping the variable itself
+        if (reduced != null) {
+            uses.addAll(compareVars);
+            if (onlyUses(phi, uses) && onlyUses(step, uses, phi, stepStmt)) {
+                for (Instr x : compareVars) {
+                    ivTemps.put(x, reduced);
+                }
+                for (Instr bound : bounds) {
+                    literals.put(bound, bound.constVal * factor);
+                }
+                deadStmts.add(stepStmt);
+                regCandidates.addAll(regs);
+                return;
+            }
+        }
+        regCandidates.add(phi.var);
+        regCandidates.addAll(regs);
+    }
+
+    // **********************************************************************
+    // range
+    //    the least and greatest values that the induction variable with
+    //    header value phi, starting at start and stepped by delta, can take
+    //    in the loop, if the loop's test bounds it (it compares the
+    //    variable with a constant, the loop is left when that is false, and
+    //    the variable steps towards the constant); else null
+    // **********************************************************************
+    private static long[] range(Instr phi, Instr start, int delta,
+                                HashSet<BasicBlock> body) {
+        BasicBlock header = phi.block;
+        if (start.state != Instr.CONST_VAL || header.instrs.isEmpty() ||
+            body.contains(header.succs.get(header.succs.size() - 1))) {
+            return null;
+        }
+        Instr branch = header.instrs.get(header.instrs.size() - 1);
+        if (branch.op != Instr.BRANCH) {
+            return null;
+        }
+        Instr test = branch.args[0];
+        int op = test.op;
+        Instr x = test.args[0];
+        Instr bound = test.args[1];
+        if (op < Instr.LT || op > Instr.GE) {
+            return null;
+        }
+        if (bound.op == Instr.LOAD && bound.args[0] == phi) {
+            x = test.args[1];
+            bound = test.args[0];
+            op = (op == Instr.LT) ? Instr.GT : (op == Instr.GT) ? Instr.LT :
+                 (op == Instr.LE) ? Instr.GE : Instr.LE;
+        }
+        if (x.op != Instr.LOAD || x.args[0] != phi ||
+            bound.state != Instr.CONST_VAL) {
+            return null;
+        }
+        boolean up = (op == Instr.LT || op == Instr.LE);
+        if (up != (delta > 0)) {
+            return null;
+        }
+        long s = start.constVal;
+        long b = bound.constVal;
+        return new long[] { Math.min(s, Math.min(b, b + delta)),
+                            Math.max(s, Math.max(b, b + delta)) };
+    }
+
+    // **********************************************************************
+    // isCurrent
+    //    is x a read of the induction variable with header value phi and
+    //    stepped value step?
+    // **********************************************************************
+    private static boolean isCurrent(Instr x, Instr phi, Instr step) {
+        return x.op == Instr.LOAD && (x.args[0] == phi || x.args[0] == step);
+    }
+
+    // **********************************************************************
+    // scaledFit
+    //    can each of the constants in bounds be multiplied by k without
+    //    overflow?
+    // **********************************************************************
+    private static boolean scaledFit(List<Instr> bounds, int k) {
+        for (Instr bound : bounds) {
+            long val = (long)bound.constVal * k;
+            if (val != (int)val) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // is range (see range) known, and do its ends, and their products with
+    // k, fit in an int?
+    private static boolean scaledFit(long[] range, int k) {
+        if (range == null) {
+            return false;
+        }
+        for (long val : new long[] { range[0], range[1],
+                                     range[0] * k, range[1] * k }) {
+            if (val != (int)val) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // **********************************************************************
+    // onlyUses
+    //    is every use of value v one of the given uses, the instruction
+    //    other, or part of the statement s that steps the variable?
+    // **********************************************************************
+    private static boolean onlyUses(Instr v, HashSet<Instr> uses) {
+        return onlyUses(v, uses, null, null);
+    }
+
+    private static boolean onlyUses(Instr v, HashSet<Instr> uses,
+                                    Instr other, StmtNode s) {
+        for (Instr u : v.uses) {
+            boolean ok = uses.contains(u) || u == other ||
+                u.op == Instr.STORE && u.stmt == s && s != null ||
+                u.op == Instr.COPY && u.uses.isEmpty() &&
+                s instanceof AssignStmtNode;
+            if (!ok) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // **********************************************************************
+    // loopBody
+    //    the blocks of the natural loop with the given header whose back
+    //    edge comes from latch
+    // **********************************************************************
+    private HashSet<BasicBlock> loopBody(BasicBlock header,
+                                         BasicBlock latch) {
+        HashSet<BasicBlock> body = new HashSet<BasicBlock>();
+        ArrayDeque<BasicBlock> work = new ArrayDeque<BasicBlock>();
+        body.add(header);
+        if (body.add(latch)) {
+            work.push(latch);
+        }
+        while (!work.isEmpty()) {
+            BasicBlock b = work.pop();
+            for (int k = 0; k < b.preds.size(); k++) {
+                if (livePred(b, k) && body.add(b.preds.get(k))) {
+                    work.push(b.preds.get(k));
+                }
+            }
+        }
+        return body;
+    }
+
+    private boolean dominates(BasicBlock a, BasicBlock b) {
+        while (b != a && b != entry) {
+            b = b.idom;
+        }
+        return b == a;
+    }
+
+    // **********************************************************************
+    // allocateCounters
+    //    give a counter to each repeat loop that is emitted as a loop (see
+    //    RepeatStmtNode.codeGen): one whose count is not a constant, or is
+    //    more than Codegen.repeatUnroll.  A loop nested in another gets a
+    //    different counter; loops that run one after another share one.
+    //    The counters are the first variables to get a register
+    // **********************************************************************
+    private void allocateCounters() {
+        List<TSym> byDepth = new ArrayList<TSym>();
+        HashMap<RepeatStmtNode, Integer> depths =
+            new HashMap<RepeatStmtNode, Integer>();
+        for (RepeatStmtNode s : repeatCounts.keySet()) {
+            if (isUnrolled(s)) {
+                continue;
+            }
+            int depth = 0;
+            for (RepeatStmtNode o = repeatOuter.get(s); o != null;
+                 o = repeatOuter.get(o)) {
+                if (depths.containsKey(o)) {
+                    depth = depths.get(o) + 1;
+                    break;
+                }
+            }
+            if (depth == byDepth.size()) {
+                TSym sym = newTemp(Type.INT);
+                regCandidates.add(sym);
+                byDepth.add(sym);
+            }
+            depths.put(s, depth);
+            counters.put(s, byDepth.get(depth));
+        }
+    }
+
+    // is the count of repeat loop s a constant (once the AST is rewritten)
+    // small enough for the loop to be unrolled completely?
+    private boolean isUnrolled(RepeatStmtNode s) {
+        ExpNode count = repeatCounts.get(s);
+        Integer val = literals.get(expInstrs.get(count));
+        if (count instanceof IntLitNode) {
+            val = ((IntLitNode)count).intVal();
+        }
+        return val != null && val <= Math.max(Codegen.repeatUnroll, 1);
+    }
+
+    // **********************************************************************
+    // allocateRegisters
+    //    give the saved registers to the induction variables and their
+    //    temporaries, in the order they were found, and reserve the frame
+    //    slots where the caller's values of those registers are saved
+    // **********************************************************************
+    private void allocateRegisters() {
+        for (TSym sym : new LinkedHashSet<TSym>(regCandidates)) {
+            if (fnSym.regSyms.size() == Codegen.S.length) {
+                break;
+            }
+            sym.reg = Codegen.S[fnSym.regSyms.size()];
+            fnSym.regSyms.add(sym);
+        }
+        if (!fnSym.regSyms.isEmpty()) {
+            fnSym.savedRegsOffset = -8 - fnSym.sizeLocals;
+            fnSym.sizeLocals += 4 * fnSym.regSyms.size();
+        }
+    }
+
+    // **********************************************************************
+    // **********************************************************************
+    // REWRITING OPERATIONS (used by the "optimize" methods of the AST nodes)
+    // **********************************************************************
+    // **********************************************************************
+
+    // **********************************************************************
+    // isReachable
+    //    can statement s ever be executed?
+    // **********************************************************************
+    public boolean isReachable(StmtNode s) {
+        BasicBlock b = stmtBlocks.get(s);
+        return b == null || b.executable;
+    }
+
+    // **********************************************************************
+    // loopCounter
+    //    the int temporary holding the remaining iterations of repeat loop
+    //    s, or null if s is unrolled completely
+    // **********************************************************************
+    public TSym loopCounter(RepeatStmtNode s) {
+        return counters.get(s);
+    }
+
+    // **********************************************************************
+    // isDead
+    //    is s the step of an induction variable that is no longer used?
+    // **********************************************************************
+    public boolean isDead(StmtNode s) {
+        return deadStmts.contains(s);
+    }
+
+    // **********************************************************************
+    // stmtsBefore, stmtsAfter
+    //    the statements to be inserted before (after) statement s
+    // **********************************************************************
+    public List<StmtNode> stmtsBefore(StmtNode s) {
+        return stmtList(before, s);
+    }
+
+    public List<StmtNode> stmtsAfter(StmtNode s) {
+        return stmtList(after, s);
+    }
+
+    private static List<StmtNode> stmtList(
+                        HashMap<StmtNode, List<StmtNode>> map, StmtNode s) {
+        List<StmtNode> list = map.get(s);
+        if (list == null) {
+            list = new ArrayList<StmtNode>();
+            map.put(s, list);
+        }
+        return list;
+    }
+
+    // **********************************************************************
+    // rewrite
+    //    return the node that replaces exp: a literal, a read of a
+    //    temporary, or exp itself
+    // **********************************************************************
+    public ExpNode rewrite(ExpNode exp) {
+        Instr i = expInstrs.get(exp);
+        if (i == null) {
+            return exp;
+        }
+
+        Integer val = literals.get(i);
+        if (val != null) {
+            int pos = LineMap.pos(exp.lineNum(), exp.charNum());
+            if (!exp.getType().isBoolType()) {
+                return new IntLitNode(pos, val);
+            } else if (val != 0) {
+                return new TrueNode(pos);
+            } else {
+                return new FalseNode(pos);
+            }
+        }
+
+        TSym iv = ivTemps.get(i);
+        if (iv != null) {
+            return idNode(iv, exp);
+        }
+
+        Instr rep = replacements.get(i);
+        if (rep != null) {
+            return tempId(rep, exp);
+        }
+        return exp;
+    }
+
+    // **********************************************************************
+    // save
+    //    if the value of exp is used again later, return an assignment of
+    //    exp to a temporary; otherwise return exp itself
+    // **********************************************************************
+    public ExpNode save(ExpNode exp) {
+        Instr i = expInstrs.get(exp);
+        if (i == null || !leaders.contains(i)) {
+            return exp;
+        }
+        return new AssignNode(tempId(i, exp), exp);
+    }
+
+    // **********************************************************************
+    // tempId
+    //    return an IdNode for the temporary holding the value of rep,
+    //    allocating a slot for it in the function's frame if needed
+    // **********************************************************************
+    private IdNode tempId(Instr rep, ExpNode exp) {
+        TSym sym = temps.get(rep);
+        if (sym == null) {
+            sym = newTemp(rep.node.getType());
+            temps.put(rep, sym);
+        }
+        return idNode(sym, exp);
+    }
+
+    private TSym newTemp(Type type) {
+        TSym sym = new TSym(type);
+        sym.offset = -8 - fnSym.sizeLocals;
+        fnSym.sizeLocals += 4;
+        return sym;
+    }
+
+    // **********************************************************************
+    // idNode
+    //    return an IdNode for sym at the position of exp (if any)
+    // **********************************************************************
+    private IdNode idNode(TSym sym, ExpNode exp) {
+        String name = names.get(sym);
+        if (name == null) {
+            name = "_tmp" + (-sym.offset);
+        }
+        IdNode id = (exp == null) ? new IdNode(LineMap.NOWHERE, name)
+                                  : new IdNode(LineMap.pos(exp.lineNum(),
+                                                           exp.charNum()),
+                                               name);
+        id.link(sym);
+        return id;
+    }
+
+    private static StmtNode assignStmt(TSym sym, ExpNode exp) {
+        IdNode id = new IdNode(LineMap.NOWHERE, "_tmp" + (-sym.offset));
+        id.link(sym);
+        return new AssignStmtNode(new AssignNode(id, exp));
+    }
+}
+
+// **********************************************************************
+// BasicBlock
+//    a straight-line sequence of Instrs; a block that ends with a BRANCH
+//    has two successors (true target first), otherwise it has one (jump)
+//    or none (return)
+// **********************************************************************
+class BasicBlock {
+    public int id;
+    public List<Instr> instrs = new ArrayList<Instr>();
+    public List<BasicBlock> preds = new ArrayList<BasicBlock>();
+    public List<BasicBlock> succs = new ArrayList<BasicBlock>();
+
+    // dominator information
+    public int rpo = -1;
+    public BasicBlock idom;
+    public List<BasicBlock> domKids;
+    public List<BasicBlock> frontier;
+
+    // sccp information
+    public boolean reachable;
+    public boolean executable = false;
+    public boolean[] execPred = new boolean[0];
+
+    public BasicBlock(int id) {
+        this.id = id;
+    }
+}
+
+// **********************************************************************
+// Instr
+//    one operation of the lowered function body; an Instr is also the SSA
+//    value it computes
+// **********************************************************************
+class Instr {
+    // operations
+    public static final int CONST = 0;      // literal
+    public static final int OPAQUE = 1;     // value unknown at compile time
+    public static final int ENTRY = 2;      // variable's value on entry
+    public static final int LOAD = 3;       // read of a variable
+    public static final int STORE = 4;      // write of a variable
+    public static final int COPY = 5;       // value of an assignment
+    public static final int PHI = 6;
+    public static final int BRANCH = 7;
+    public static final int NEG = 8;
+    public static final int NOT = 9;
+    public static final int ADD = 10;
+    public static final int SUB = 11;
+    public static final int MUL = 12;
+    public static final int DIV = 13;
+    public static final int EQ = 14;
+    public static final int NE = 15;
+    public static final int LT = 16;
+    public static final int GT = 17;
+    public static final int LE = 18;
+    public static final int GE = 19;
+
+    // sccp lattice
+    public static final int TOP = 0;
+    public static final int CONST_VAL = 1;
+    public static final int BOTTOM = 2;
+
+    public int id;
+    public int op;
+    public Instr[] args;
+    public BasicBlock block;
+    public int value;           // for CONST
+    public TSym var;            // for LOAD, STORE, ENTRY and variable PHIs
+    public List<Instr> uses = new ArrayList<Instr>();
+
+    // link to the AST
+    public ExpNode node;        // pure expression computing this value
+    public StmtNode stmt;       // for STORE, the statement it is part of
+    public boolean pure = true;
+    public Instr[] kids;        // values of node's subexpressions
+    public Instr parent;        // value of the expression containing node
+
+    // analysis results
+    public int state = TOP;
+    public int constVal;
+    public Instr vn;            // value number
+    public Instr rep;           // first dominating Instr with the same vn
+    public Integer known;       // value implied by a dominating branch
+
+    public Instr(int id, int op, BasicBlock block, Instr[] args) {
+        this.id = id;
+        this.op = op;
+        this.block = block;
+        this.args = args;
+    }
+
+    public static boolean isCommutative(int op) {
+        return op == ADD || op == MUL || op == EQ || op == NE;
+    }
+
+    // **********************************************************************
+    // isComputation
+    //    is this the value of an operator (worth keeping in a temporary)?
+    // **********************************************************************
+    public boolean isComputation() {
+        return op >= NEG || (op == PHI && node != null);
+    }
+
+    // **********************************************************************
+    // lower
+    //    meet the current lattice value with (s, c)
+    // **********************************************************************
+    public void lower(int s, int c) {
+        if (s == TOP || state == BOTTOM) {
+            return;
+        }
+        if (state == TOP) {
+            state = s;
+            constVal = c;
+        } else if (s == BOTTOM || constVal != c) {
+            state = BOTTOM;
+        }
+    }
+
+    // **********************************************************************
+    // canFold
+    //    can this operation be computed at compile time?  Not if it would
+    //    trap when run (the program must still stop there): only add and
+    //    sub trap on overflow; a product wraps around, as mult does
+    // **********************************************************************
+    public boolean canFold() {
+        int a = args[0].constVal;
+        int b = (args.length > 1) ? args[1].constVal : 0;
+        switch (op) {
+        case ADD: return (long)a + b == a + b;
+        case SUB: return (long)a - b == a - b;
+        case DIV: return b != 0 && !(a == Integer.MIN_VALUE && b == -1);
+        default: return true;
+        }
+    }
+
+    public int fold() {
+        int a = args[0].constVal;
+        int b = (args.length > 1) ? args[1].constVal : 0;
+        switch (op) {
+        case NEG: return -a;
+        case NOT: return (a == 0) ? 1 : 0;
+        case ADD: return a + b;
+        case SUB: return a - b;
+        case MUL: return a * b;
+        case DIV: return a / b;
+        case EQ: return (a == b) ? 1 : 0;
+        case NE: return (a != b) ? 1 : 0;
+        case LT: return (a < b) ? 1 : 0;
+        case GT: return (a > b) ? 1 : 0;
+        case LE: return (a <= b) ? 1 : 0;
+        default: return (a >= b) ? 1 : 0;
+        }
+    }
+}
@@ -1,4 +1,5 @@
 import java.io.*;
+import java.nio.charset.Charset;
 
 import java_cup.runtime.*;
 
@@ -12,13 +13,32 @@ import java_cup.runtime.*;
  * The program opens the two files, creates a scanner and a parser, and
  * calls the parser.  If the parse is successful, then it will call name
  * analysis and type checking routines. If there is no error at the end,
- * it will generate MIPS code to the output file.
+ * it will optimize each function and generate MIPS code to the output
+ * file.
  */
 public class P6 {
-	FileReader inFile;
+	FileInputStream inFile;
 	private PrintWriter outFile;
 	private static PrintStream outStream = System.err;
 
+	// all of the source file, in source[0..sourceLength), and the bytes it
+	// was read from if there is one for each character (else null)
+	private char[] source;
+	private int sourceLength;
+	private byte[] sourceBytes;
+
+	// whether to scan the whole file into a TokenStream before parsing
+	// (-Dp6.tokens=array), rather than a token at a time as the parser
+	// asks for them; a large file is then scanned in parallel chunks
+	private static final boolean TOKEN_ARRAYS =
+		"array".equals(System.getProperty("p6.tokens"));
+
+	// the scanner to use (-Dp6.scanner): Yylex ("jlex", the default),
+	// DirectLexer ("direct"), or both, checking that they find the same
+	// tokens and messages ("check")
+	private static final String SCANNER =
+		System.getProperty("p6.scanner", "jlex");
+
 	public static final int RESULT_CORRECT = 0;
 	public static final int RESULT_SYNTAX_ERROR = 1;
 	public static final int RESULT_TYPE_ERROR = 2;
@@ -63,7 +83,7 @@ public class P6 {
 	 */
 	public void setInfile(String filename) throws BadInfileException{
 		try {
-			inFile = new FileReader(filename);
+			inFile = new FileInputStream(filename);
 		} catch (FileNotFoundException ex) {
 			throw new BadInfileException(ex, filename);
 		}
@@ -130,13 +150,61 @@ public class P6 {
 	 */
 	private Symbol parseCFG() {
 		try {
-			parser P = new parser(new Yylex(inFile));
+			readSource();
+			Scanner scanner;
+			if (SCANNER.equals("check")) {
+				scanner = checkScanners().scanner();
+			} else if (TOKEN_ARRAYS && SCANNER.equals("direct")) {
+				scanner = DirectLexer.tokenize(source, sourceBytes,
+											   sourceLength).scanner();
+			} else if (TOKEN_ARRAYS) {
+				scanner = Yylex.tokenize(source, sourceLength).scanner();
+			} else if (SCANNER.equals("direct")) {
+				scanner = new DirectLexer(source, sourceBytes, 0, sourceLength);
+			} else {
+				scanner = new Yylex(new CharArrayReader(source, 0,
+														sourceLength));
+			}
+			parser P = new parser(scanner);
 			return P.parse();
 		} catch (Exception e) {
 			return null;
 		}
 	}
 
+	/**
+	 * Scans the source with both Yylex and DirectLexer, and reports an
+	 * error where they first differ, if they do not find the same tokens
+	 * or print the same messages.  Returns the tokens of Yylex.
+	 */
+	private TokenStream checkScanners() {
+		TokenStream jlex = Yylex.tokenize(source, sourceLength);
+		TokenStream direct = DirectLexer.tokenize(source, sourceBytes,
+												  sourceLength);
+
+		int k = jlex.firstDifference(direct);
+		if (k >= 0) {
+			int pos = k < jlex.size ? jlex.start[k] : direct.start[k];
+			ErrMsg.fatal(pos, "scanners differ");
+		} else if (!jlex.sameMessages(direct)) {
+			ErrMsg.fatal(LineMap.NOWHERE, "scanners differ in their messages");
+		}
+		return jlex;
+	}
+
+	/**
+	 * Reads all of the source file (decoded as a FileReader would), and
+	 * builds the LineMap for it.
+	 */
+	private void readSource() throws IOException {
+		byte[] bytes = inFile.readAllBytes();
+		char[] buf = new String(bytes, Charset.defaultCharset()).toCharArray();
+		LineMap.build(buf, buf.length);
+		source = buf;
+		sourceLength = buf.length;
+		sourceBytes = bytes.length == buf.length ? bytes : null;
+	}
+
 	public int process() {
 		Symbol cfgRoot = parseCFG();
 
@@ -155,6 +223,8 @@ public class P6 {
 			return P6.RESULT_TYPE_ERROR;
 		}
 
+		astRoot.optimize();
+
 		astRoot.codeGen(this.outFile);
 		if (ErrMsg.getErr()) {
 			return P6.RESULT_OTHER_ERROR;
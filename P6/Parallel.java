@@ -0,0 +1,75 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Parallel
+ *
+ * Runs the work of a compiler pass for each of a list of items (e.g., the
+ * functions of the program) on a pool of threads.  The number of threads
+ * is given by the system property p6.threads (default: the number of
+ * processors); with 1, the items are done in order in the calling thread.
+ */
+class Parallel {
+    static int threads = Integer.getInteger("p6.threads",
+        Runtime.getRuntime().availableProcessors());
+
+    private static ExecutorService pool = null;
+
+    /**
+     * The work to do for one item.
+     */
+    interface Task<T> {
+        void run(T item);
+    }
+
+    /**
+     * Does task for every item, and returns when all are done.
+     */
+    static <T> void forEach(List<T> items, final Task<T> task) {
+        if (threads <= 1 || items.size() <= 1) {
+            for (T item : items) {
+                task.run(item);
+            }
+            return;
+        }
+
+        List<Future<?>> done = new ArrayList<Future<?>>();
+        for (final T item : items) {
+            done.add(pool().submit(new Runnable() {
+                public void run() {
+                    task.run(item);
+                }
+            }));
+        }
+        try {
+            for (Future<?> f : done) {
+                f.get();
+            }
+        } catch (InterruptedException ex) {
+            throw new RuntimeException(ex);
+        } catch (ExecutionException ex) {
+            // as if the task had been run in this thread
+            Throwable cause = ex.getCause();
+            if (cause instanceof Error) {
+                throw (Error)cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private static synchronized ExecutorService pool() {
+        if (pool == null) {
+            pool = Executors.newFixedThreadPool(threads,
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r);
+                        t.setDaemon(true);   // don't keep the compiler alive
+                        return t;
+                    }
+                });
+        }
+        return pool;
+    }
+}
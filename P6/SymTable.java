@@ -1,12 +1,101 @@
 import java.util.*;
 
+/**
+ * A scoped symbol table kept as one persistent (immutable) map from each
+ * name to the stack of its bindings (innermost first).  Declaring a name
+ * makes a new map that shares all but O(log n) of its structure with the
+ * old one, so addScope just remembers the current map and removeScope
+ * goes back to it.  Lookups never walk the scopes.
+ *
+ * Since the maps are never changed, a snapshot of a table is free and can
+ * be used by another thread while this table goes on changing; e.g., the
+ * body of each function can be analyzed against its own snapshot of the
+ * global scope.
+ *
+ * Names are keyed by their int id in Names, in a hash array mapped trie;
+ * the String versions of the operations intern the name first.
+ */
 public class SymTable {
 
-  private List<HashMap<String, TSym>> list;
+  // one binding of a name: its symbol, the scope (1 = outermost) that
+  // declared it, and the binding it shadows
+  private static final class Binding {
+    final TSym sym;
+    final int depth;
+    final Binding shadowed;
+
+    Binding(TSym sym, int depth, Binding shadowed) {
+      this.sym = sym;
+      this.depth = depth;
+      this.shadowed = shadowed;
+    }
+  }
+
+  // a name declared in a scope, and the names declared before it
+  private static final class Decl {
+    final int name;
+    final int depth;
+    final Decl next;
+
+    Decl(int name, int depth, Decl next) {
+      this.name = name;
+      this.depth = depth;
+      this.next = next;
+    }
+  }
+
+  // the trie: a node has up to 32 children, chosen by 5 bits of the hash
+  // at each level, each a Leaf or a Node; only the present ones are kept,
+  // in bit order
+  private static final class Node {
+    final int bitmap;
+    final Object[] children;
+
+    Node(int bitmap, Object[] children) {
+      this.bitmap = bitmap;
+      this.children = children;
+    }
+  }
+
+  private static final class Leaf {
+    final int name;
+    final int hash;
+    final Binding binding;
+
+    Leaf(int name, int hash, Binding binding) {
+      this.name = name;
+      this.hash = hash;
+      this.binding = binding;
+    }
+  }
+
+  private static final Node EMPTY = new Node(0, new Object[0]);
+
+  private Node root;
+  private Decl decls;
+  private int depth;
+  private List<Node> savedRoots;   // root and decls on entry to each scope
+  private List<Decl> savedDecls;
 
   public SymTable() {
-    list = new LinkedList<HashMap<String, TSym>>();
-    list.add(new HashMap<String, TSym>());
+    root = EMPTY;
+    savedRoots = new ArrayList<Node>();
+    savedDecls = new ArrayList<Decl>();
+    addScope();
+  }
+
+  /**
+   * Return a table with the same scopes and declarations as this one,
+   * which does not see later changes to this one (nor this one to it).
+   */
+  public SymTable snapshot() {
+    SymTable copy = new SymTable();
+    copy.root = root;
+    copy.decls = decls;
+    copy.depth = depth;
+    copy.savedRoots = new ArrayList<Node>(savedRoots);
+    copy.savedDecls = new ArrayList<Decl>(savedDecls);
+    return copy;
   }
 
   public void addDecl(String name, TSym sym) throws DuplicateSymException,
@@ -16,67 +105,146 @@ public class SymTable {
       throw new IllegalArgumentException();
     } else if (name == null) {
       throw new IllegalArgumentException();
-    } else if (sym == null) {
+    }
+    addDecl(Names.intern(name), sym);
+  }
+
+  public void addDecl(int name, TSym sym) throws DuplicateSymException,
+  EmptySymTableException, IllegalArgumentException {
+
+    if (sym == null) {
       throw new IllegalArgumentException();
     }
 
-    if (list.isEmpty()) {
+    if (depth == 0) {
       throw new EmptySymTableException();
     }
 
-    HashMap<String, TSym> symTab = list.get(0);
-    if (symTab.containsKey(name)) {
+    Binding b = find(name);
+    if (b != null && b.depth == depth) {
       throw new DuplicateSymException();
     } else {
-      symTab.put(name, sym);
+      Binding binding = new Binding(sym, depth, b);
+      root = insert(root, new Leaf(name, hash(name), binding), 0);
+      decls = new Decl(name, depth, decls);
     }
   }
 
   public void addScope() {
-    list.add(0, new HashMap<String, TSym>());
+    savedRoots.add(root);
+    savedDecls.add(decls);
+    depth++;
   }
 
   public TSym lookupLocal(String name) throws EmptySymTableException {
-    if (list.isEmpty()) {
+    return lookupLocal(Names.intern(name));
+  }
+
+  public TSym lookupLocal(int name) throws EmptySymTableException {
+    if (depth == 0) {
       throw new EmptySymTableException();
     }
 
-    if (list.get(0).containsKey(name)){
-      return list.get(0).get(name);
+    Binding b = find(name);
+    if (b != null && b.depth == depth) {
+      return b.sym;
     } else {
       return null;
     }
   }
 
   public TSym lookupGlobal(String name) throws EmptySymTableException {
-    if (list.isEmpty()) {
+    return lookupGlobal(Names.intern(name));
+  }
+
+  public TSym lookupGlobal(int name) throws EmptySymTableException {
+    if (depth == 0) {
       throw new EmptySymTableException();
     }
 
-    for (HashMap<String, TSym> symTab : list) {
-      if (symTab.containsKey(name)){
-        return symTab.get(name);
-      }
-    }
-    return null;
+    Binding b = find(name);
+    return b == null ? null : b.sym;
   }
 
   public void removeScope() throws EmptySymTableException {
-    if (list.isEmpty()) {
+    if (depth == 0) {
       throw new EmptySymTableException();
     }
-    list.remove(0);
+    root = savedRoots.remove(depth - 1);
+    decls = savedDecls.remove(depth - 1);
+    depth--;
   }
 
   public void print() {
     System.out.print("\nSym Table\n");
-    for (HashMap<String, TSym> symTab : list) {
+    Decl d = decls;
+    for (int k = depth; k >= 1; k--) {
+      HashMap<String, TSym> symTab = new HashMap<String, TSym>();
+      for (; d != null && d.depth == k; d = d.next) {
+        Binding b = find(d.name);
+        while (b.depth != k) {
+          b = b.shadowed;
+        }
+        symTab.put(Names.name(d.name), b.sym);
+      }
       System.out.println(symTab.toString());
     }
     System.out.println();
   }
 
   public int getNumScope() {
-    return this.list.size();
+    return depth;
+  }
+
+  // a one-to-one mix of the bits of name, so that two names always differ
+  // somewhere in their hashes
+  private static int hash(int name) {
+    int h = name * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  private Binding find(int name) {
+    int hash = hash(name);
+    Node n = root;
+    for (int shift = 0; ; shift += 5) {
+      int bit = 1 << ((hash >>> shift) & 31);
+      if ((n.bitmap & bit) == 0) {
+        return null;
+      }
+      Object child = n.children[Integer.bitCount(n.bitmap & (bit - 1))];
+      if (child instanceof Leaf) {
+        Leaf leaf = (Leaf)child;
+        return leaf.name == name ? leaf.binding : null;
+      }
+      n = (Node)child;
+    }
+  }
+
+  // return a copy of n, whose level in the trie is given by shift, with
+  // leaf added (replacing any leaf for the same name)
+  private static Node insert(Node n, Leaf leaf, int shift) {
+    int bit = 1 << ((leaf.hash >>> shift) & 31);
+    int index = Integer.bitCount(n.bitmap & (bit - 1));
+
+    if ((n.bitmap & bit) == 0) {
+      Object[] children = new Object[n.children.length + 1];
+      System.arraycopy(n.children, 0, children, 0, index);
+      children[index] = leaf;
+      System.arraycopy(n.children, index, children, index + 1,
+                       n.children.length - index);
+      return new Node(n.bitmap | bit, children);
+    }
+
+    Object child = n.children[index];
+    Object[] children = n.children.clone();
+    if (child instanceof Node) {
+      children[index] = insert((Node)child, leaf, shift + 5);
+    } else if (((Leaf)child).name == leaf.name) {
+      children[index] = leaf;
+    } else {
+      Node both = insert(EMPTY, (Leaf)child, shift + 5);
+      children[index] = insert(both, leaf, shift + 5);
+    }
+    return new Node(n.bitmap, children);
   }
 }
@@ -6,8 +6,14 @@ import java.util.*;
  */
 public class TSym {
     private Type type;
-    public static int initialOffset = -8;
+    // the offset of the next variable declared (1 in the global scope), and
+    // the lowest one reached in the current function (the locals of a
+    // block are freed when it ends, so later blocks reuse their slots);
+    // kept per thread, since function bodies are analyzed in parallel
+    private static final ThreadLocal<int[]> offsets =
+        ThreadLocal.withInitial(() -> new int[] { -8, -8 });
     public int offset = 0;
+    public String reg = null;   // register holding the variable, if any
 
     public TSym(Type type) {
         this.type = type;
@@ -17,8 +23,24 @@ public class TSym {
         return type;
     }
 
+    public static int initialOffset() {
+        return offsets.get()[0];
+    }
+
+    public static void setInitialOffset(int offset) {
+        offsets.get()[0] = offset;
+    }
+
+    public static int lowestOffset() {
+        return offsets.get()[1];
+    }
+
+    public static void setLowestOffset(int offset) {
+        offsets.get()[1] = offset;
+    }
+
     public boolean isGlobal() {
-        return TSym.initialOffset == 1;
+        return TSym.initialOffset() == 1;
     }
 
     public String toString() {
@@ -39,8 +61,14 @@ class FnSym extends TSym {
     public int sizeParams = 0;
     public int sizeLocals = 0;
 
+    // variables kept in the saved registers Codegen.S (regSyms.get(k) is
+    // in Codegen.S[k]), and the offset of the slot where the caller's
+    // value of Codegen.S[0] is saved (the others follow it downward)
+    public List<TSym> regSyms = new ArrayList<TSym>();
+    public int savedRegsOffset = 0;
+
     public FnSym(Type type, int numparams) {
-        super(new FnType());
+        super(Type.FN);
         returnType = type;
         numParams = numparams;
     }
@@ -89,7 +117,7 @@ class StructSym extends TSym {
     private IdNode structType;  // name of the struct type
 
     public StructSym(IdNode id) {
-        super(new StructType(id));
+        super(StructType.get(id));
         structType = id;
     }
 
@@ -105,15 +133,90 @@ class StructSym extends TSym {
  * fields.
  */
 class StructDefSym extends TSym {
-    // new fields
-    private SymTable symTab;
+    // the fields in declaration order: the name (its id in Names), the
+    // symbol, and the byte offset from the lowest address of a variable of
+    // this struct type; and the field indices in order of name, for lookup
+    private final int[] fieldNames;
+    private final TSym[] fieldSyms;
+    private final int[] fieldOffsets;
+    private final int[] byName;
+    private int size = 0;
+
+    public StructDefSym(List<IdNode> fields) {
+        super(Type.STRUCT_DEF);
+        int n = fields.size();
+        fieldNames = new int[n];
+        fieldSyms = new TSym[n];
+        fieldOffsets = new int[n];
+        Integer[] order = new Integer[n];
+        for (int k = 0; k < n; k++) {
+            IdNode field = fields.get(k);
+            fieldNames[k] = field.nameId();
+            fieldSyms[k] = field.sym();
+            fieldOffsets[k] = size;
+            size += sizeOf(field.sym());
+            order[k] = k;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Integer.compare(fieldNames[a], fieldNames[b]);
+            }
+        });
+        byName = new int[n];
+        for (int k = 0; k < n; k++) {
+            byName[k] = order[k];
+        }
+    }
+
+    /**
+     * Return the index of the field with the given name, or -1 if there is
+     * no such field.
+     */
+    public int fieldIndex(int name) {
+        int lo = 0;
+        int hi = byName.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int k = byName[mid];
+            if (fieldNames[k] < name) {
+                lo = mid + 1;
+            } else if (fieldNames[k] > name) {
+                hi = mid - 1;
+            } else {
+                return k;
+            }
+        }
+        return -1;
+    }
 
-    public StructDefSym(SymTable table) {
-        super(new StructDefType());
-        symTab = table;
+    /**
+     * Return the symbol of the field with the given index.
+     */
+    public TSym getField(int index) {
+        return fieldSyms[index];
     }
 
-    public SymTable getSymTable() {
-        return symTab;
+    /**
+     * Return the byte offset of the field with the given index within this
+     * struct.
+     */
+    public int getFieldOffset(int index) {
+        return fieldOffsets[index];
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Return the number of bytes needed to hold a variable with the given
+     * symbol: a word, or the whole struct for a struct variable.
+     */
+    public static int sizeOf(TSym sym) {
+        if (sym instanceof StructSym) {
+            TSym def = ((StructSym)sym).getStructType().sym();
+            return ((StructDefSym)def).getSize();
+        }
+        return 4;
     }
 }
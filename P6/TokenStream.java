@@ -0,0 +1,300 @@
+import java.util.*;
+
+import java_cup.runtime.Scanner;
+import java_cup.runtime.Symbol;
+
+/**
+ * TokenStream
+ *
+ * The tokens of a source file, kept in parallel arrays rather than as a
+ * Symbol and a TokenVal each: for the k-th token, its kind (a constant in
+ * sym), its start offset (from which LineMap gives its line and column)
+ * and length in the source, and its value, which is the int value of an
+ * integer literal, the id in Names of an identifier, or the index in
+ * strings of a string literal (0 for other tokens).  While a stream is
+ * scanned, its identifiers are interned in a table of its own (names),
+ * which no other thread uses; scanChunks then interns them in Names.
+ * The arrays grow as needed, so adding a token allocates nothing.
+ *
+ * The parser reads a stream through scanner(), which makes the Symbol for
+ * each token only when it is asked for it.  The scanner's error messages
+ * are held in the stream, each with the number of tokens found before it,
+ * and reported as the parser reaches them, so that they come out when
+ * (and only if) they would have come out had the parser called the
+ * scanner itself.
+ */
+class TokenStream {
+    /**
+     * A scanner of the part buf[start..end) of a source, which starts and
+     * ends at the start of a line, into a stream.
+     */
+    interface ChunkScanner {
+        TokenStream scan(char[] buf, int start, int end);
+    }
+
+    // the fewest characters worth scanning as a chunk of their own
+    static int minChunk = Integer.getInteger("p6.lexChunk", 1 << 16);
+
+    int size = 0;
+    int[] kind = new int[1024];
+    int[] start = new int[1024];
+    int[] length = new int[1024];
+    int[] value = new int[1024];
+    List<String> strings = new ArrayList<String>();
+    List<Message> messages = new ArrayList<Message>();
+
+    // the names of the identifiers, whose values are ids in this table
+    // until internNames makes them ids in Names (then it is null)
+    private Names.Table names = new Names.Table();
+
+    /**
+     * An error or warning message of the scanner, at offset pos in the
+     * source, found after the first token tokens of the stream.
+     */
+    static class Message {
+        int tokens;
+        int pos;
+        boolean fatal;
+        String msg;
+
+        Message(int tokens, int pos, boolean fatal, String msg) {
+            this.tokens = tokens;
+            this.pos = pos;
+            this.fatal = fatal;
+            this.msg = msg;
+        }
+
+        boolean equals(Message other) {
+            return tokens == other.tokens && pos == other.pos &&
+                fatal == other.fatal && msg.equals(other.msg);
+        }
+
+        void report() {
+            if (fatal) {
+                ErrMsg.fatal(pos, msg);
+            } else {
+                ErrMsg.warn(pos, msg);
+            }
+        }
+    }
+
+    /**
+     * Scans all of the source in buf[0..length) with scanner.
+     *
+     * No token spans a newline, so a large source is split at newlines
+     * into chunks (one per thread of Parallel) that are scanned at the
+     * same time; their tokens, and their messages, are put back in order.
+     */
+    static TokenStream scanChunks(final char[] buf, int length,
+                                  final ChunkScanner scanner) {
+        int n = Math.max(1, Math.min(Parallel.threads, length / minChunk));
+        List<int[]> chunks = new ArrayList<int[]>();  // start, end, index
+        int start = 0;
+        for (int k = 1; k < n; k++) {
+            int end = Math.max(start + 1, (int)((long)length * k / n));
+            while (end < length && buf[end - 1] != '\n') {
+                end++;
+            }
+            if (end >= length) {
+                break;
+            }
+            chunks.add(new int[] { start, end, chunks.size() });
+            start = end;
+        }
+        chunks.add(new int[] { start, length, chunks.size() });
+
+        final TokenStream[] streams = new TokenStream[chunks.size()];
+        Parallel.forEach(chunks, new Parallel.Task<int[]>() {
+            public void run(int[] chunk) {
+                streams[chunk[2]] = scanner.scan(buf, chunk[0], chunk[1]);
+            }
+        });
+
+        streams[0].internNames();
+        for (int k = 1; k < streams.length; k++) {
+            streams[0].append(streams[k]);
+        }
+        return streams[0];
+    }
+
+    /**
+     * Adds a token at the end of the stream.
+     */
+    void add(int kind, int start, int length, int value) {
+        if (size == this.kind.length) {
+            grow();
+        }
+        this.kind[size] = kind;
+        this.start[size] = start;
+        this.length[size] = length;
+        this.value[size] = value;
+        size++;
+    }
+
+    /**
+     * Returns the id of the name in buf[start..end) in this stream's own
+     * table, interning it there if it is new.
+     */
+    int intern(char[] buf, int start, int end) {
+        return names.intern(buf, start, end);
+    }
+
+    /**
+     * Adds the text of a string literal, and returns its index.
+     */
+    int addString(String strVal) {
+        strings.add(strVal);
+        return strings.size() - 1;
+    }
+
+    /**
+     * Adds an error message of the scanner, found after the tokens added so
+     * far.
+     */
+    void fatal(int pos, String msg) {
+        messages.add(new Message(size, pos, true, msg));
+    }
+
+    /**
+     * Adds a warning message of the scanner, found after the tokens added
+     * so far.
+     */
+    void warn(int pos, String msg) {
+        messages.add(new Message(size, pos, false, msg));
+    }
+
+    /**
+     * Adds the tokens and messages of other (which follow those of this
+     * stream in the source) at the end of this stream.
+     */
+    void append(TokenStream other) {
+        other.internNames();
+        while (size + other.size > kind.length) {
+            grow();
+        }
+        for (Message m : other.messages) {
+            messages.add(new Message(size + m.tokens, m.pos, m.fatal, m.msg));
+        }
+        int strs = strings.size();
+        for (int k = 0; k < other.size; k++) {
+            int val = other.value[k];
+            if (other.kind[k] == sym.STRINGLITERAL) {
+                val += strs;
+            }
+            add(other.kind[k], other.start[k], other.length[k], val);
+        }
+        strings.addAll(other.strings);
+    }
+
+    /**
+     * Makes the value of each identifier its id in Names, rather than in
+     * this stream's own table; the names are interned in the order in
+     * which they first appear, as if the stream had used Names.
+     */
+    private void internNames() {
+        if (names == null) {
+            return;
+        }
+        int[] ids = new int[names.size()];
+        for (int id = 0; id < ids.length; id++) {
+            ids[id] = Names.intern(names.name(id));
+        }
+        for (int k = 0; k < size; k++) {
+            if (kind[k] == sym.ID) {
+                value[k] = ids[value[k]];
+            }
+        }
+        names = null;
+    }
+
+    /**
+     * Returns the index of the first token that differs between this
+     * stream and other (in kind, place, or value), or -1 if they are the
+     * same.
+     */
+    int firstDifference(TokenStream other) {
+        for (int k = 0; k < Math.min(size, other.size); k++) {
+            if (kind[k] != other.kind[k] || start[k] != other.start[k] ||
+                length[k] != other.length[k]) {
+                return k;
+            }
+            if (kind[k] == sym.STRINGLITERAL) {
+                String strVal = other.strings.get(other.value[k]);
+                if (!strings.get(value[k]).equals(strVal)) {
+                    return k;
+                }
+            } else if (value[k] != other.value[k]) {
+                return k;
+            }
+        }
+        return size == other.size ? -1 : Math.min(size, other.size);
+    }
+
+    /**
+     * Returns whether this stream and other have the same messages, found
+     * at the same places.
+     */
+    boolean sameMessages(TokenStream other) {
+        if (messages.size() != other.messages.size()) {
+            return false;
+        }
+        for (int k = 0; k < messages.size(); k++) {
+            if (!messages.get(k).equals(other.messages.get(k))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a scanner that gives the parser the tokens of this stream,
+     * in order, as the Symbols Yylex would have returned for them, and
+     * reports the messages found before each token as it is returned.
+     */
+    Scanner scanner() {
+        return new Scanner() {
+            private int next = 0;
+            private int nextMessage = 0;
+
+            public Symbol next_token() {
+                while (nextMessage < messages.size() &&
+                       messages.get(nextMessage).tokens <= next) {
+                    messages.get(nextMessage++).report();
+                }
+                if (next == size) {
+                    return new Symbol(sym.EOF);
+                }
+                return symbol(next++);
+            }
+        };
+    }
+
+    /**
+     * Returns the Symbol for the k-th token.
+     */
+    Symbol symbol(int k) {
+        TokenVal val;
+        switch (kind[k]) {
+        case sym.ID:
+            val = new IdTokenVal(start[k], value[k]);
+            break;
+        case sym.INTLITERAL:
+            val = new IntLitTokenVal(start[k], value[k]);
+            break;
+        case sym.STRINGLITERAL:
+            val = new StrLitTokenVal(start[k], strings.get(value[k]));
+            break;
+        default:
+            val = new TokenVal(start[k]);
+        }
+        return new Symbol(kind[k], val);
+    }
+
+    private void grow() {
+        int n = 2 * kind.length;
+        kind = Arrays.copyOf(kind, n);
+        start = Arrays.copyOf(start, n);
+        length = Arrays.copyOf(length, n);
+        value = Arrays.copyOf(value, n);
+    }
+}
@@ -1,8 +1,23 @@
+import java.util.*;
+
 /**
  * Type class and its subclasses: 
  * ErrorType, IntType, BoolType, VoidType, StringType, FnType, StructType,
+ *
+ * There is one instance of each type other than StructType (Type.INT,
+ * Type.BOOL, etc.), and one StructType per struct name (StructType.get),
+ * so types are shared rather than allocated by each typeCheck.  Most are
+ * compared by reference, but StructType.equals, as it always has, counts
+ * any two struct types as equal.
  */
 abstract public class Type {
+    public static final Type ERROR = new ErrorType();
+    public static final Type INT = new IntType();
+    public static final Type BOOL = new BoolType();
+    public static final Type VOID = new VoidType();
+    public static final Type STRING = new StringType();
+    public static final Type FN = new FnType();
+    public static final Type STRUCT_DEF = new StructDefType();
 
     /**
      * default constructor
@@ -57,12 +72,15 @@ abstract public class Type {
 // **********************************************************************
 class ErrorType extends Type {
 
+    ErrorType() {
+    }
+
     public boolean isErrorType() {
         return true;
     }
 
     public boolean equals(Type t) {
-        return t.isErrorType();
+        return t == this;
     }
 
     public String toString() {
@@ -75,12 +93,15 @@ class ErrorType extends Type {
 // **********************************************************************
 class IntType extends Type {
 
+    IntType() {
+    }
+
     public boolean isIntType() {
         return true;
     }
 
     public boolean equals(Type t) {
-        return t.isIntType();
+        return t == this;
     }
 
     public String toString() {
@@ -93,12 +114,15 @@ class IntType extends Type {
 // **********************************************************************
 class BoolType extends Type {
 
+    BoolType() {
+    }
+
     public boolean isBoolType() {
         return true;
     }
 
     public boolean equals(Type t) {
-        return t.isBoolType();
+        return t == this;
     }
 
     public String toString() {
@@ -111,12 +135,15 @@ class BoolType extends Type {
 // **********************************************************************
 class VoidType extends Type {
 
+    VoidType() {
+    }
+
     public boolean isVoidType() {
         return true;
     }
 
     public boolean equals(Type t) {
-        return t.isVoidType();
+        return t == this;
     }
 
     public String toString() {
@@ -129,12 +156,15 @@ class VoidType extends Type {
 // **********************************************************************
 class StringType extends Type {
 
+    StringType() {
+    }
+
     public boolean isStringType() {
         return true;
     }
 
     public boolean equals(Type t) {
-        return t.isStringType();
+        return t == this;
     }
 
     public String toString() {
@@ -147,12 +177,15 @@ class StringType extends Type {
 // **********************************************************************
 class FnType extends Type {
 
+    FnType() {
+    }
+
     public boolean isFnType() {
         return true;
     }
 
     public boolean equals(Type t) {
-        return t.isFnType();
+        return t == this;
     }
 
     public String toString() {
@@ -164,18 +197,33 @@ class FnType extends Type {
 // StructType
 // **********************************************************************
 class StructType extends Type {
+    private static HashMap<String, StructType> interned =
+        new HashMap<String, StructType>();
+
     private IdNode myId;
     
-    public StructType(IdNode id) {
+    private StructType(IdNode id) {
         myId = id;
     }
+
+    /**
+     * Return the type of variables of the struct named by id.
+     */
+    public static synchronized StructType get(IdNode id) {
+        StructType type = interned.get(id.name());
+        if (type == null) {
+            type = new StructType(id);
+            interned.put(id.name(), type);
+        }
+        return type;
+    }
     
     public boolean isStructType() {
         return true;
     }
 
     public boolean equals(Type t) {
-        return t.isStructType();
+        return t instanceof StructType;
     }
 
     public String toString() {
@@ -188,12 +236,15 @@ class StructType extends Type {
 // **********************************************************************
 class StructDefType extends Type {
 
+    StructDefType() {
+    }
+
     public boolean isStructDefType() {
         return true;
     }
 
     public boolean equals(Type t) {
-        return t.isStructDefType();
+        return t == this;
     }
 
     public String toString() {
@@ -133,8 +133,8 @@ class ProgramNode extends ASTnode {
      */
     public void nameAnalysis() {
         SymTable symTab = new SymTable();
-        TSym.initialOffset = 1;
-        myDeclList.nameAnalysis(symTab);
+        TSym.setInitialOffset(1);
+        myDeclList.nameAnalysisGlobal(symTab);
 
         try {
             TSym mainSym = symTab.lookupLocal("main");
@@ -150,13 +150,22 @@ class ProgramNode extends ASTnode {
      * typeCheck
      */
     public void typeCheck() {
-        myDeclList.typeCheck();
+        myDeclList.typeCheckGlobal();
+    }
+
+    /**
+     * optimize
+     * Optimizes the body of each function before code generation.
+     */
+    public void optimize() {
+        myDeclList.optimize();
     }
 
     public void codeGen(PrintWriter p) {
-        Codegen.p = p;
-        Codegen.stringMap = new HashMap<>();
-        myDeclList.codeGen();
+        Codegen.setOutput(p);
+        Codegen.initData();
+        myDeclList.codeGenGlobal();
+        Codegen.genDataSegment();
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -187,19 +196,75 @@ class DeclListNode extends ASTnode {
      * decls in the list.
      */
     public void nameAnalysis(SymTable symTab, SymTable globalTab) {
-        int currOffset = TSym.initialOffset;
+        int currOffset = TSym.initialOffset();
         for (DeclNode node : myDecls) {
             if (node instanceof VarDeclNode) {
                 ((VarDeclNode)node).nameAnalysis(symTab, globalTab);
-                ((VarDeclNode)node).getSym().offset = currOffset;
+                TSym sym = ((VarDeclNode)node).getSym();
+                if (sym == null) {
+                    continue;
+                }
                 if (currOffset != 1) {
-                    currOffset -= 4;
+                    // a local occupies size bytes ending at currOffset;
+                    // its offset is that of its lowest address
+                    int size = StructDefSym.sizeOf(sym);
+                    sym.offset = currOffset - size + 4;
+                    currOffset -= size;
+                } else {
+                    sym.offset = currOffset;
+                }
+            } else {
+                node.nameAnalysis(symTab);
+            }
+        }
+        TSym.setInitialOffset(currOffset);
+        if (currOffset != 1) {
+            TSym.setLowestOffset(Math.min(TSym.lowestOffset(), currOffset));
+        }
+    }
+
+    /**
+     * nameAnalysisGlobal
+     * Process the decls of the program (the global scope), given its
+     * symbol table symTab.  The decls themselves are processed in order;
+     * then the bodies of the functions, each against the snapshot of the
+     * global scope its function saw, are processed in parallel.  Error
+     * messages are printed in the order of the decls, as if all were
+     * processed in order.
+     */
+    public void nameAnalysisGlobal(SymTable symTab) {
+        final Map<DeclNode, List<String>> msgs =
+            new IdentityHashMap<DeclNode, List<String>>();
+        List<FnDeclNode> fns = new ArrayList<FnDeclNode>();
+
+        int currOffset = TSym.initialOffset();
+        for (DeclNode node : myDecls) {
+            ErrMsg.startBuffer();
+            if (node instanceof VarDeclNode) {
+                TSym sym = ((VarDeclNode)node).nameAnalysis(symTab);
+                if (sym != null) {
+                    sym.offset = currOffset;
                 }
             } else {
                 node.nameAnalysis(symTab);
+                if (node instanceof FnDeclNode) {
+                    fns.add((FnDeclNode)node);
+                }
             }
+            msgs.put(node, ErrMsg.endBuffer());
+        }
+
+        Parallel.forEach(fns, new Parallel.Task<FnDeclNode>() {
+            public void run(FnDeclNode fn) {
+                ErrMsg.startBuffer();
+                fn.bodyNameAnalysis();
+                msgs.get(fn).addAll(ErrMsg.endBuffer());
+            }
+        });
+
+        for (DeclNode node : myDecls) {
+            ErrMsg.print(msgs.get(node));
         }
-        TSym.initialOffset = currOffset;
     }
 
     /**
@@ -211,10 +276,86 @@ class DeclListNode extends ASTnode {
         }
     }
 
-    public void codeGen() {
+    /**
+     * typeCheckGlobal
+     * Type check the decls of the program in parallel, printing the error
+     * messages in the order of the decls.
+     */
+    public void typeCheckGlobal() {
+        final Map<DeclNode, List<String>> msgs = Collections.synchronizedMap(
+            new IdentityHashMap<DeclNode, List<String>>());
+
+        Parallel.forEach(myDecls, new Parallel.Task<DeclNode>() {
+            public void run(DeclNode node) {
+                ErrMsg.startBuffer();
+                node.typeCheck();
+                msgs.put(node, ErrMsg.endBuffer());
+            }
+        });
+
+        for (DeclNode node : myDecls) {
+            ErrMsg.print(msgs.get(node));
+        }
+    }
+
+    /**
+     * optimize
+     */
+    public void optimize() {
+        for (DeclNode node : myDecls) {
+            node.optimize();
+        }
+    }
+
+    /**
+     * codeGenGlobal
+     * Generate the decls of the program (the global scope).  The globals
+     * are recorded in order; then the functions are generated in parallel,
+     * each into its own buffer, and written in declaration order.
+     */
+    public void codeGenGlobal() {
+        List<FnDeclNode> fns = new ArrayList<FnDeclNode>();
+        for (DeclNode node : myDecls) {
+            if (node instanceof FnDeclNode) {
+                if (((FnDeclNode)node).name().equals("main")) {
+                    Codegen.closeGp();
+                }
+                fns.add((FnDeclNode)node);
+            } else {
+                node.codeGen();
+            }
+        }
+
+        final Map<FnDeclNode, Codegen.Function> code =
+            Collections.synchronizedMap(
+                new IdentityHashMap<FnDeclNode, Codegen.Function>());
+
+        Parallel.forEach(fns, new Parallel.Task<FnDeclNode>() {
+            public void run(FnDeclNode fn) {
+                Codegen.startFunction(fn.name());
+                fn.codeGen();
+                code.put(fn, Codegen.endFunction());
+            }
+        });
+
+        for (FnDeclNode fn : fns) {
+            Codegen.emit(code.get(fn));
+        }
+    }
+
+    /**
+     * Return the names of the variables declared in this list (without
+     * errors), in declaration order.
+     */
+    public List<IdNode> varIds() {
+        List<IdNode> ids = new ArrayList<IdNode>();
         for (DeclNode node : myDecls) {
-            node.codeGen();
+            if (node instanceof VarDeclNode &&
+                ((VarDeclNode)node).getSym() != null) {
+                ids.add(((VarDeclNode)node).getId());
+            }
         }
+        return ids;
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -301,10 +442,11 @@ class FnBodyNode extends ASTnode {
      * - process the statement list
      */
     public void nameAnalysis(SymTable symTab) {
-      TSym.initialOffset = -8;
+      TSym.setInitialOffset(-8);
+      TSym.setLowestOffset(-8);
       myDeclList.nameAnalysis(symTab);
       myStmtList.nameAnalysis(symTab);
-      int currOffset = TSym.initialOffset;
+      int currOffset = TSym.lowestOffset();
       this.sizeLocals = (currOffset + 8) * (-1);
     }
 
@@ -315,6 +457,21 @@ class FnBodyNode extends ASTnode {
         myStmtList.typeCheck(retType);
     }
 
+    /**
+     * lower
+     * Lowers the statements of the body into opt's control-flow graph.
+     */
+    public void lower(Optimizer opt) {
+        myStmtList.lower(opt);
+    }
+
+    /**
+     * optimize
+     */
+    public void optimize(Optimizer opt) {
+        myStmtList.optimize(opt);
+    }
+
     public void codeGen(String fnEndLabel) {
         myStmtList.codeGen(fnEndLabel);
     }
@@ -358,6 +515,37 @@ class StmtListNode extends ASTnode {
         }
     }
 
+    /**
+     * lower
+     */
+    public void lower(Optimizer opt) {
+        for (StmtNode node : myStmts) {
+            opt.startStmt(node);
+            node.lower(opt);
+        }
+    }
+
+    /**
+     * optimize
+     * Removes the statements that can never be executed or are no longer
+     * needed, optimizes the rest, and adds the statements opt wants
+     * around them.
+     */
+    public void optimize(Optimizer opt) {
+        List<StmtNode> stmts = new LinkedList<StmtNode>();
+        for (StmtNode node : myStmts) {
+            if (opt.isReachable(node)) {
+                node.optimize(opt);
+                stmts.addAll(opt.stmtsBefore(node));
+                if (!opt.isDead(node)) {
+                    stmts.add(node);
+                }
+                stmts.addAll(opt.stmtsAfter(node));
+            }
+        }
+        myStmts = stmts;
+    }
+
     public void codeGen(String fnEndLabel) {
         for(StmtNode node : myStmts) {
             node.codeGen(fnEndLabel);
@@ -418,6 +606,27 @@ class ExpListNode extends ASTnode {
         }
     }
 
+    /**
+     * lower
+     * The expressions are evaluated last to first, as in codeGen.
+     */
+    public void lower(Optimizer opt) {
+        ListIterator<ExpNode> it = myExps.listIterator(myExps.size());
+        while (it.hasPrevious()) {
+            it.previous().lower(opt);
+        }
+    }
+
+    /**
+     * optimize
+     */
+    public void optimize(Optimizer opt) {
+        ListIterator<ExpNode> it = myExps.listIterator();
+        while (it.hasNext()) {
+            it.set(it.next().optimize(opt));
+        }
+    }
+
     public void codeGen() {
         List<ExpNode> myExpsReversed = new LinkedList<ExpNode>(this.myExps);
         Collections.reverse(myExpsReversed);
@@ -455,6 +664,7 @@ abstract class DeclNode extends ASTnode {
 
     // default version of typeCheck for non-function decls
     public void typeCheck() {}
+    public void optimize() {}
     public void codeGen() {}
 }
 
@@ -486,7 +696,7 @@ class VarDeclNode extends DeclNode {
 
     public TSym nameAnalysis(SymTable symTab, SymTable globalTab) {
         boolean badDecl = false;
-        String name = myId.name();
+        int nameId = myId.nameId();
         TSym sym = null;
         IdNode structId = null;
 
@@ -500,7 +710,7 @@ class VarDeclNode extends DeclNode {
             structId = ((StructNode)myType).idNode();
 
             try {
-                sym = globalTab.lookupGlobal(structId.name());
+                sym = globalTab.lookupGlobal(structId.nameId());
             } catch (EmptySymTableException ex) {
                 System.err.println("Unexpected EmptySymTableException " +
                                    " in VarDeclNode.nameAnalysis");
@@ -521,7 +731,7 @@ class VarDeclNode extends DeclNode {
         TSym symCheckMul = null;
 
         try {
-            symCheckMul = symTab.lookupLocal(name);
+            symCheckMul = symTab.lookupLocal(nameId);
         } catch (EmptySymTableException ex) {
                             System.err.println("Unexpected EmptySymTableException " +
                                    " in VarDeclNode.nameAnalysis");
@@ -541,7 +751,7 @@ class VarDeclNode extends DeclNode {
                 else {
                     sym = new TSym(myType.type());
                 }
-                symTab.addDecl(name, sym);
+                symTab.addDecl(nameId, sym);
                 myId.link(sym);
             } catch (DuplicateSymException ex) {
                 System.err.println("Unexpected DuplicateSymException " +
@@ -563,7 +773,7 @@ class VarDeclNode extends DeclNode {
 
     public void codeGen() {
         if (myId.sym().offset == 1) {
-            Codegen.p.print(Codegen.addGlobalVar(myId.name()));
+            Codegen.addGlobalVar(myId.name(), StructDefSym.sizeOf(myId.sym()));
         }
     }
 
@@ -571,6 +781,10 @@ class VarDeclNode extends DeclNode {
         return myId.sym();
     }
 
+    public IdNode getId() {
+        return myId;
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndentation(p, indent);
         myType.unparse(p, 0);
@@ -608,16 +822,17 @@ class FnDeclNode extends DeclNode {
      *     process the formals
      *     if this function is not multiply declared,
      *         update symbol table entry with types of formals
-     *     process the body of the function
+     *     save a snapshot of the table for the body
      *     exit scope
+     * The body itself is processed later, by bodyNameAnalysis.
      */
     public TSym nameAnalysis(SymTable symTab) {
-        String name = myId.name();
+        int nameId = myId.nameId();
         FnSym sym = null;
         TSym symCheckMul = null;
 
         try {
-            symCheckMul = symTab.lookupLocal(name);
+            symCheckMul = symTab.lookupLocal(nameId);
         } catch (EmptySymTableException ex) {
                             System.err.println("Unexpected EmptySymTableException " +
                                    " in FnDeclNode.nameAnalysis");
@@ -631,7 +846,7 @@ class FnDeclNode extends DeclNode {
         else { // add function name to local symbol table
             try {
                 sym = new FnSym(myType.type(), myFormalsList.length());
-                symTab.addDecl(name, sym);
+                symTab.addDecl(nameId, sym);
                 myId.link(sym);
             } catch (DuplicateSymException ex) {
                 System.err.println("Unexpected DuplicateSymException " +
@@ -654,12 +869,12 @@ class FnDeclNode extends DeclNode {
         List<Type> typeList = myFormalsList.nameAnalysis(symTab);
         if (sym != null) {
             sym.addFormals(typeList);
+            sym.sizeParams = myFormalsList.getSizeParams();
         }
 
-        sym.sizeParams = myFormalsList.getSizeParams();
-
-        myBody.nameAnalysis(symTab); // process the function body
-        sym.sizeLocals = myBody.getSizeLocals();
+        // the body sees the scope as it is now, whatever is declared after
+        // this function
+        myBodyTab = symTab.snapshot();
 
         try {
             symTab.removeScope();  // exit scope
@@ -672,6 +887,20 @@ class FnDeclNode extends DeclNode {
         return null;
     }
 
+    /**
+     * bodyNameAnalysis
+     * Process the body of the function, in the scope saved for it by
+     * nameAnalysis.  Bodies of different functions may be processed at
+     * the same time by different threads.
+     */
+    public void bodyNameAnalysis() {
+        myBody.nameAnalysis(myBodyTab);
+        if (myId.sym() instanceof FnSym) {
+            ((FnSym)myId.sym()).sizeLocals = myBody.getSizeLocals();
+        }
+        myBodyTab = null;
+    }
+
     /**
      * typeCheck
      */
@@ -679,26 +908,67 @@ class FnDeclNode extends DeclNode {
         myBody.typeCheck(myType.type());
     }
 
+    /**
+     * optimize
+     * Lowers the body into SSA form, runs constant propagation and value
+     * numbering on it, and rewrites the body with the results.
+     */
+    public void optimize() {
+        Optimizer opt = new Optimizer((FnSym)myId.sym());
+        myBody.lower(opt);
+        opt.run();
+        myBody.optimize(opt);
+    }
+
     public void codeGen() {
         String fnName = myId.name();
         String fnEndLabel = Codegen.nextLabel();
 
         if (fnName.equals("main")) {
-            Codegen.p.print("\t.text\n\t.globl main\nmain:\t# FUNCTION ENTRY\n" +
+            Codegen.out().print("\t.text\n\t.globl main\nmain:\t# FUNCTION ENTRY\n" +
             "__start:\t# add __start label for main only\n");
         } else {
-            Codegen.p.print(String.format("\t.text\n_%s:\t# FUNCTION ENTRY\n", fnName));
+            Codegen.out().print(String.format("\t.text\n_%s:\t# FUNCTION ENTRY\n", fnName));
         }
 
-        Codegen.genPush(Codegen.RA);
-        Codegen.genPush(Codegen.FP);
-        Codegen.generate("addu", Codegen.FP, Codegen.SP, 8);
-        Codegen.generate("subu", Codegen.SP, Codegen.SP, ((FnSym)myId.sym()).sizeLocals);
+        FnSym sym = (FnSym)myId.sym();
 
+        // the body is generated first, into a buffer, so that the frame can
+        // reserve the spill slots it needs below the locals
+        StringWriter body = new StringWriter();
+        PrintWriter out = Codegen.setOutput(new PrintWriter(body));
+        Codegen.startSpills(-8 - sym.sizeLocals);
         myBody.codeGen(fnEndLabel);
         Codegen.genLabel(fnEndLabel);
+        Codegen.setOutput(out).flush();
+
+        Codegen.genPush(Codegen.RA);
+        Codegen.genPush(Codegen.FP);
+        Codegen.generate("addu", Codegen.FP, Codegen.SP, 8);
+        Codegen.generate("subu", Codegen.SP, Codegen.SP,
+                         sym.sizeLocals + Codegen.spillSize());
+        if (fnName.equals("main")) {
+            Codegen.genGpSetup();
+        }
+
+        // save the registers that hold variables; parameters kept in a
+        // register start with the value the caller pushed
+        for (int k = 0; k < sym.regSyms.size(); k++) {
+            TSym var = sym.regSyms.get(k);
+            Codegen.generateIndexed("sw", Codegen.S[k], Codegen.FP,
+                                    sym.savedRegsOffset - 4 * k);
+            if (var.offset > 0) {
+                Codegen.generateIndexed("lw", Codegen.S[k], Codegen.FP,
+                                        var.offset);
+            }
+        }
 
-        Codegen.p.print("\t\t#FUNCTION EXIT\n");
+        Codegen.out().print(body.toString());
+        Codegen.out().print("\t\t#FUNCTION EXIT\n");
+        for (int k = 0; k < sym.regSyms.size(); k++) {
+            Codegen.generateIndexed("lw", Codegen.S[k], Codegen.FP,
+                                    sym.savedRegsOffset - 4 * k);
+        }
         Codegen.generateIndexed("lw", Codegen.RA, Codegen.FP, 0);
         Codegen.generate("move", Codegen.T0, Codegen.FP);
         Codegen.generateIndexed("lw", Codegen.FP, Codegen.FP, -4);
@@ -713,6 +983,13 @@ class FnDeclNode extends DeclNode {
 
     }
 
+    /**
+     * Return the name of the function.
+     */
+    public String name() {
+        return myId.name();
+    }
+
     public void unparse(PrintWriter p, int indent) {
         addIndentation(p, indent);
         myType.unparse(p, 0);
@@ -730,6 +1007,8 @@ class FnDeclNode extends DeclNode {
     private IdNode myId;
     private FormalsListNode myFormalsList;
     private FnBodyNode myBody;
+
+    private SymTable myBodyTab;  // scope of the body, until it is analyzed
 }
 
 class FormalDeclNode extends DeclNode {
@@ -747,7 +1026,7 @@ class FormalDeclNode extends DeclNode {
      * else add a new entry to the symbol table and return that TSym
      */
     public TSym nameAnalysis(SymTable symTab) {
-        String name = myId.name();
+        int nameId = myId.nameId();
         boolean badDecl = false;
         TSym sym = null;
 
@@ -760,7 +1039,7 @@ class FormalDeclNode extends DeclNode {
         TSym symCheckMul = null;
 
         try {
-            symCheckMul = symTab.lookupLocal(name);
+            symCheckMul = symTab.lookupLocal(nameId);
         } catch (EmptySymTableException ex) {
                             System.err.println("Unexpected EmptySymTableException " +
                                    " in FormalDeclNode.nameAnalysis");
@@ -775,7 +1054,7 @@ class FormalDeclNode extends DeclNode {
         if (!badDecl) {  // insert into symbol table
             try {
                 sym = new TSym(myType.type());
-                symTab.addDecl(name, sym);
+                symTab.addDecl(nameId, sym);
                 myId.link(sym);
             } catch (DuplicateSymException ex) {
                 System.err.println("Unexpected DuplicateSymException " +
@@ -817,19 +1096,20 @@ class StructDeclNode extends DeclNode {
      * Given a symbol table symTab, do:
      * if this name is already in the symbol table,
      *     then multiply declared error (don't add to symbol table)
-     * create a new symbol table for this struct definition
-     * process the decl list
+     * process the decl list (in a symbol table of its own, to find fields
+     * declared more than once)
      * if no errors
-     *     add a new entry to symbol table for this struct
+     *     add a new entry to symbol table for this struct, which holds
+     *     its fields
      */
     public TSym nameAnalysis(SymTable symTab) {
-        String name = myId.name();
+        int nameId = myId.nameId();
         boolean badDecl = false;
 
         TSym symCheckMul = null;
 
         try {
-            symCheckMul = symTab.lookupLocal(name);
+            symCheckMul = symTab.lookupLocal(nameId);
         } catch (EmptySymTableException ex) {
             System.err.println("Unexpected EmptySymTableException " +
                            " in StructDeclNode.nameAnalysis");
@@ -846,8 +1126,8 @@ class StructDeclNode extends DeclNode {
             try {   // add entry to symbol table
                 SymTable structSymTab = new SymTable();
                 myDeclList.nameAnalysis(structSymTab, symTab);
-                StructDefSym sym = new StructDefSym(structSymTab);
-                symTab.addDecl(name, sym);
+                StructDefSym sym = new StructDefSym(myDeclList.varIds());
+                symTab.addDecl(nameId, sym);
                 myId.link(sym);
             } catch (DuplicateSymException ex) {
                 System.err.println("Unexpected DuplicateSymException " +
@@ -900,7 +1180,7 @@ class IntNode extends TypeNode {
      * type
      */
     public Type type() {
-        return new IntType();
+        return Type.INT;
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -916,7 +1196,7 @@ class BoolNode extends TypeNode {
      * type
      */
     public Type type() {
-        return new BoolType();
+        return Type.BOOL;
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -932,7 +1212,7 @@ class VoidNode extends TypeNode {
      * type
      */
     public Type type() {
-        return new VoidType();
+        return Type.VOID;
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -953,7 +1233,7 @@ class StructNode extends TypeNode {
      * type
      */
     public Type type() {
-        return new StructType(myId);
+        return StructType.get(myId);
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -972,6 +1252,8 @@ class StructNode extends TypeNode {
 abstract class StmtNode extends ASTnode {
     abstract public void nameAnalysis(SymTable symTab);
     abstract public void typeCheck(Type retType);
+    abstract public void lower(Optimizer opt);
+    abstract public void optimize(Optimizer opt);
     abstract public void codeGen(String fnEndLabel);
 }
 
@@ -995,8 +1277,26 @@ class AssignStmtNode extends StmtNode {
         myAssign.typeCheck();
     }
 
+    public void lower(Optimizer opt) {
+        myAssign.lower(opt);
+    }
+
+    public void optimize(Optimizer opt) {
+        myAssign.optimize(opt);
+    }
+
     public void codeGen(String fnExitLabel) {
-        myAssign.codeGenExp();
+        myAssign.codeGenEffect();
+    }
+
+    /**
+     * isStep
+     * Is this statement var = var + c or var = var - c (or var = c + var),
+     * where c is a literal or a variable, so that it reads nothing but to
+     * step var?
+     */
+    public boolean isStep(TSym var) {
+        return myAssign.isStep(var);
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -1034,14 +1334,32 @@ class PostIncStmtNode extends StmtNode {
         }
     }
 
+    /**
+     * lower
+     */
+    public void lower(Optimizer opt) {
+        if (myExp instanceof IdNode) {
+            TSym sym = ((IdNode)myExp).sym();
+            Instr val = opt.load(sym, null);
+            opt.store(sym, opt.binary(Instr.ADD, val, opt.constant(1, null),
+                                      null));
+        } else {
+            myExp.lower(opt);
+        }
+    }
+
+    public void optimize(Optimizer opt) {
+    }
+
     public void codeGen(String fnEndLabel) {
-        IdNode node = (IdNode)myExp;
-        node.codeGenLoc();
-        node.codeGenExp();
-        Codegen.genPop(Codegen.T0);
-        Codegen.genPop(Codegen.T1);
+        if (myExp instanceof IdNode && ((IdNode)myExp).reg() != null) {
+            String reg = ((IdNode)myExp).reg();
+            Codegen.generate("add", reg, reg, 1);
+            return;
+        }
+        myExp.codeGenCommon();
         Codegen.generate("add", Codegen.T0, Codegen.T0, 1);
-        Codegen.generateIndexed("sw", Codegen.T0, Codegen.T1, 0);
+        myExp.codeGenStore();
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -1079,14 +1397,32 @@ class PostDecStmtNode extends StmtNode {
         }
     }
 
+    /**
+     * lower
+     */
+    public void lower(Optimizer opt) {
+        if (myExp instanceof IdNode) {
+            TSym sym = ((IdNode)myExp).sym();
+            Instr val = opt.load(sym, null);
+            opt.store(sym, opt.binary(Instr.SUB, val, opt.constant(1, null),
+                                      null));
+        } else {
+            myExp.lower(opt);
+        }
+    }
+
+    public void optimize(Optimizer opt) {
+    }
+
     public void codeGen(String fnEndLabel) {
-        IdNode node = (IdNode)myExp;
-        node.codeGenLoc();
-        node.codeGenExp();
-        Codegen.genPop(Codegen.T0);
-        Codegen.genPop(Codegen.T1);
+        if (myExp instanceof IdNode && ((IdNode)myExp).reg() != null) {
+            String reg = ((IdNode)myExp).reg();
+            Codegen.generate("sub", reg, reg, 1);
+            return;
+        }
+        myExp.codeGenCommon();
         Codegen.generate("sub", Codegen.T0, Codegen.T0, 1);
-        Codegen.generateIndexed("sw", Codegen.T0, Codegen.T1, 0);
+        myExp.codeGenStore();
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -1134,19 +1470,38 @@ class ReadStmtNode extends StmtNode {
         }
     }
 
+    /**
+     * lower
+     */
+    public void lower(Optimizer opt) {
+        if (myExp instanceof IdNode) {
+            opt.store(((IdNode)myExp).sym(), opt.opaque(null, false));
+        }
+    }
+
+    public void optimize(Optimizer opt) {
+    }
+
+    /**
+     * codeGen
+     * The value read is put straight into the variable's register, or
+     * into T0 and stored.
+     */
     public void codeGen(String fnEndLabel) {
-        IdNode node = (IdNode)myExp;
+        boolean inReg = myExp instanceof IdNode &&
+                        ((IdNode)myExp).reg() != null;
+        String reg = inReg ? ((IdNode)myExp).reg() : Codegen.T0;
+
         Codegen.generate("li", Codegen.V0, 5);
         Codegen.generate("syscall");
-        node.codeGenLoc();
-        Codegen.genPop(Codegen.T0);
-        if(node.sym().getType().isBoolType()){
-            Codegen.generate("sne", Codegen.T1, Codegen.V0, Codegen.FALSE);
-            Codegen.generateIndexed("sw", Codegen.T1, Codegen.T0, 0);
-        }else{
-            Codegen.generateIndexed("sw", Codegen.V0, Codegen.T0, 0);
+        if (myExp.getType().isBoolType()) {
+            Codegen.generate("sne", reg, Codegen.V0, Codegen.FALSE);
+        } else {
+            Codegen.generate("move", reg, Codegen.V0);
+        }
+        if (!inReg) {
+            myExp.codeGenStore();
         }
-
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -1200,11 +1555,18 @@ class WriteStmtNode extends StmtNode {
         }
     }
 
+    public void lower(Optimizer opt) {
+        myExp.lower(opt);
+    }
+
+    public void optimize(Optimizer opt) {
+        myExp = myExp.optimize(opt);
+    }
+
     public void codeGen(String fnEndLabel) {
-        myExp.codeGenExp();
+        myExp.codeGenCommon();
 
-        Type expType = myExp.typeCheck();
-        Codegen.genPop(Codegen.T0);
+        Type expType = myExp.getType();
         Codegen.generate("move", Codegen.A0, Codegen.T0);
         int sysCallCode = 1;
 
@@ -1246,8 +1608,10 @@ class IfStmtNode extends StmtNode {
     public void nameAnalysis(SymTable symTab) {
         myExp.nameAnalysis(symTab);
         symTab.addScope();
+        int entryOffset = TSym.initialOffset();
         myDeclList.nameAnalysis(symTab);
         myStmtList.nameAnalysis(symTab);
+        TSym.setInitialOffset(entryOffset);
         try {
             symTab.removeScope();
         } catch (EmptySymTableException ex) {
@@ -1271,7 +1635,36 @@ class IfStmtNode extends StmtNode {
         myStmtList.typeCheck(retType);
     }
 
+    /**
+     * lower
+     */
+    public void lower(Optimizer opt) {
+        BasicBlock thenBlock = opt.newBlock();
+        BasicBlock doneBlock = opt.newBlock();
+        opt.branch(myExp.lower(opt), thenBlock, doneBlock);
+        opt.setBlock(thenBlock);
+        myStmtList.lower(opt);
+        opt.jump(doneBlock);
+        opt.setBlock(doneBlock);
+    }
+
+    /**
+     * optimize
+     */
+    public void optimize(Optimizer opt) {
+        myExp = myExp.optimize(opt);
+        myStmtList.optimize(opt);
+    }
+
     public void codeGen(String fnEndLabel) {
+        if (myExp instanceof FalseNode) {   // never taken
+            return;
+        }
+        if (myExp instanceof TrueNode) {    // always taken
+            myStmtList.codeGen(fnEndLabel);
+            return;
+        }
+
         String trueLabel = Codegen.nextLabel();
         String doneLabel = Codegen.nextLabel();
         myExp.codeGenJump(trueLabel, doneLabel);
@@ -1323,10 +1716,9 @@ class IfElseStmtNode extends StmtNode {
         myExp.nameAnalysis(symTab);
         symTab.addScope();
 
-        int entryOffset = TSym.initialOffset;
+        int entryOffset = TSym.initialOffset();
         myThenDeclList.nameAnalysis(symTab);
         myThenStmtList.nameAnalysis(symTab);
-        int exitOffset1 = TSym.initialOffset;
 
         try {
             symTab.removeScope();
@@ -1337,12 +1729,10 @@ class IfElseStmtNode extends StmtNode {
         }
         symTab.addScope();
 
-        TSym.initialOffset = entryOffset;
+        TSym.setInitialOffset(entryOffset);
         myElseDeclList.nameAnalysis(symTab);
         myElseStmtList.nameAnalysis(symTab);
-        int exitOffset2 = TSym.initialOffset;
-        int exitOffset = exitOffset1 < exitOffset2 ? exitOffset1:exitOffset2;
-        TSym.initialOffset = exitOffset;
+        TSym.setInitialOffset(entryOffset);
 
         try {
             symTab.removeScope();
@@ -1368,7 +1758,42 @@ class IfElseStmtNode extends StmtNode {
         myElseStmtList.typeCheck(retType);
     }
 
+    /**
+     * lower
+     */
+    public void lower(Optimizer opt) {
+        BasicBlock thenBlock = opt.newBlock();
+        BasicBlock elseBlock = opt.newBlock();
+        BasicBlock doneBlock = opt.newBlock();
+        opt.branch(myExp.lower(opt), thenBlock, elseBlock);
+        opt.setBlock(thenBlock);
+        myThenStmtList.lower(opt);
+        opt.jump(doneBlock);
+        opt.setBlock(elseBlock);
+        myElseStmtList.lower(opt);
+        opt.jump(doneBlock);
+        opt.setBlock(doneBlock);
+    }
+
+    /**
+     * optimize
+     */
+    public void optimize(Optimizer opt) {
+        myExp = myExp.optimize(opt);
+        myThenStmtList.optimize(opt);
+        myElseStmtList.optimize(opt);
+    }
+
     public void codeGen(String fnEndLabel) {
+        if (myExp instanceof TrueNode) {
+            myThenStmtList.codeGen(fnEndLabel);
+            return;
+        }
+        if (myExp instanceof FalseNode) {
+            myElseStmtList.codeGen(fnEndLabel);
+            return;
+        }
+
         String trueLabel = Codegen.nextLabel();
         String falseLabel = Codegen.nextLabel();
         String doneLabel = Codegen.nextLabel();
@@ -1427,8 +1852,10 @@ class WhileStmtNode extends StmtNode {
     public void nameAnalysis(SymTable symTab) {
         myExp.nameAnalysis(symTab);
         symTab.addScope();
+        int entryOffset = TSym.initialOffset();
         myDeclList.nameAnalysis(symTab);
         myStmtList.nameAnalysis(symTab);
+        TSym.setInitialOffset(entryOffset);
         try {
             symTab.removeScope();
         } catch (EmptySymTableException ex) {
@@ -1452,7 +1879,36 @@ class WhileStmtNode extends StmtNode {
         myStmtList.typeCheck(retType);
     }
 
+    /**
+     * lower
+     */
+    public void lower(Optimizer opt) {
+        BasicBlock condBlock = opt.newBlock();
+        BasicBlock bodyBlock = opt.newBlock();
+        BasicBlock doneBlock = opt.newBlock();
+        opt.jump(condBlock);
+        opt.setBlock(condBlock);
+        opt.startLoop(this, condBlock);
+        opt.branch(myExp.lower(opt), bodyBlock, doneBlock);
+        opt.setBlock(bodyBlock);
+        myStmtList.lower(opt);
+        opt.jump(condBlock);
+        opt.setBlock(doneBlock);
+    }
+
+    /**
+     * optimize
+     */
+    public void optimize(Optimizer opt) {
+        myExp = myExp.optimize(opt);
+        myStmtList.optimize(opt);
+    }
+
     public void codeGen(String fnEndLabel) {
+        if (myExp instanceof FalseNode) {   // dead loop
+            return;
+        }
+
         String condLabel = Codegen.nextLabel();
         String bodyLabel = Codegen.nextLabel();
         String doneLabel = Codegen.nextLabel();
@@ -1502,8 +1958,10 @@ class RepeatStmtNode extends StmtNode {
     public void nameAnalysis(SymTable symTab) {
         myExp.nameAnalysis(symTab);
         symTab.addScope();
+        int entryOffset = TSym.initialOffset();
         myDeclList.nameAnalysis(symTab);
         myStmtList.nameAnalysis(symTab);
+        TSym.setInitialOffset(entryOffset);
         try {
             symTab.removeScope();
         } catch (EmptySymTableException ex) {
@@ -1527,7 +1985,104 @@ class RepeatStmtNode extends StmtNode {
         myStmtList.typeCheck(retType);
     }
 
+    /**
+     * lower
+     * The number of iterations is not tracked, so the loop test is opaque.
+     */
+    public void lower(Optimizer opt) {
+        myExp.lower(opt);
+        opt.startRepeat(this, myExp);
+        BasicBlock condBlock = opt.newBlock();
+        BasicBlock bodyBlock = opt.newBlock();
+        BasicBlock doneBlock = opt.newBlock();
+        opt.jump(condBlock);
+        opt.setBlock(condBlock);
+        opt.branch(opt.opaque(null, false), bodyBlock, doneBlock);
+        opt.setBlock(bodyBlock);
+        myStmtList.lower(opt);
+        opt.endRepeat(this);
+        opt.jump(condBlock);
+        opt.setBlock(doneBlock);
+    }
+
+    /**
+     * optimize
+     * The counter is only needed (and opt only gives one) if the loop is
+     * not unrolled completely.
+     */
+    public void optimize(Optimizer opt) {
+        myExp = myExp.optimize(opt);
+        myCounter = opt.loopCounter(this);
+        myStmtList.optimize(opt);
+    }
+
+    /**
+     * codeGen
+     * The count is evaluated once into the counter, which is decremented
+     * and tested against zero at the bottom of the loop. A constant count
+     * is unrolled Codegen.repeatUnroll times, with the leftover iterations
+     * after the loop.
+     */
     public void codeGen(String fnEndLabel) {
+        String bodyLabel = Codegen.nextLabel();
+        String doneLabel = Codegen.nextLabel();
+        int copies = 1;
+        int extra = 0;
+
+        if (myExp instanceof IntLitNode) {
+            int count = ((IntLitNode)myExp).intVal();
+            copies = Math.max(Codegen.repeatUnroll, 1);
+            extra = count % copies;
+            if (count <= copies) {
+                for (int k = 0; k < count; k++) {
+                    myStmtList.codeGen(fnEndLabel);
+                }
+                return;
+            }
+            if (myCounter.reg != null) {
+                Codegen.generate("li", myCounter.reg, count / copies);
+            } else {
+                Codegen.generate("li", Codegen.T0, count / copies);
+                storeCounter();
+            }
+        } else {
+            myExp.codeGenCommon();
+            storeCounter();
+            Codegen.generate("blez", Codegen.T0, doneLabel);
+        }
+
+        Codegen.genLabel(bodyLabel);
+        for (int k = 0; k < copies; k++) {
+            myStmtList.codeGen(fnEndLabel);
+        }
+        if (myCounter.reg != null) {
+            Codegen.generate("sub", myCounter.reg, myCounter.reg, 1);
+            Codegen.generate("bnez", myCounter.reg, bodyLabel);
+        } else {
+            Codegen.generateIndexed("lw", Codegen.T0, Codegen.FP,
+                                    myCounter.offset);
+            Codegen.generate("sub", Codegen.T0, Codegen.T0, 1);
+            storeCounter();
+            Codegen.generate("bnez", Codegen.T0, bodyLabel);
+        }
+        Codegen.genLabel(doneLabel);
+
+        for (int k = 0; k < extra; k++) {
+            myStmtList.codeGen(fnEndLabel);
+        }
+    }
+
+    /**
+     * Store $t0 into the counter; if the counter is in a register, $t0 is
+     * copied there.
+     */
+    private void storeCounter() {
+        if (myCounter.reg != null) {
+            Codegen.generate("move", myCounter.reg, Codegen.T0);
+        } else {
+            Codegen.generateIndexed("sw", Codegen.T0, Codegen.FP,
+                                    myCounter.offset);
+        }
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -1545,6 +2100,8 @@ class RepeatStmtNode extends StmtNode {
     private ExpNode myExp;
     private DeclListNode myDeclList;
     private StmtListNode myStmtList;
+
+    private TSym myCounter;  // the remaining number of iterations, if needed
 }
 
 class CallStmtNode extends StmtNode {
@@ -1567,8 +2124,16 @@ class CallStmtNode extends StmtNode {
         myCall.typeCheck();
     }
 
+    public void lower(Optimizer opt) {
+        myCall.lower(opt);
+    }
+
+    public void optimize(Optimizer opt) {
+        myCall.optimize(opt);
+    }
+
     public void codeGen(String fnEndLabel) {
-        myCall.codeGenCommon();
+        myCall.codeGenEffect();
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -1623,10 +2188,29 @@ class ReturnStmtNode extends StmtNode {
 
     }
 
+    /**
+     * lower
+     */
+    public void lower(Optimizer opt) {
+        if (myExp != null) {
+            myExp.lower(opt);
+        }
+        opt.ret();
+    }
+
+    /**
+     * optimize
+     */
+    public void optimize(Optimizer opt) {
+        if (myExp != null) {
+            myExp = myExp.optimize(opt);
+        }
+    }
+
     public void codeGen(String fnEndLabel) {
-        if (myExp != null && !myExp.typeCheck().isVoidType()) {
-            myExp.codeGenExp();
-            Codegen.genPop(Codegen.V0);
+        if (myExp != null && !myExp.getType().isVoidType()) {
+            myExp.codeGenCommon();
+            Codegen.generate("move", Codegen.V0, Codegen.T0);
         }
         Codegen.generate("b", fnEndLabel);
     }
@@ -1655,21 +2239,131 @@ abstract class ExpNode extends ASTnode {
      */
     public void nameAnalysis(SymTable symTab) { }
 
-    abstract public Type typeCheck();
     abstract public int lineNum();
     abstract public int charNum();
-    public void codeGenExp(){
-        this.codeGenCommon();
-        Codegen.genPush(Codegen.T0);
-    };
-    abstract protected void codeGenCommon();
-    public void codeGenJump(String trueLabel, String falseLabel) {}
+
+    /**
+     * typeCheck
+     * Checks this expression, reporting any errors, and records its type
+     * for the later passes, which read it with getType().
+     */
+    public Type typeCheck() {
+        myType = checkType();
+        return myType;
+    }
+
+    /**
+     * getType
+     * Returns the type recorded by typeCheck (a node made after type
+     * checking, by the optimizer, computes it on first use).
+     */
+    public Type getType() {
+        if (myType == null) {
+            myType = checkType();
+        }
+        return myType;
+    }
+
+    abstract protected Type checkType();
+
+    /**
+     * lower
+     * Adds the evaluation of this expression to opt's control-flow graph
+     * and returns the Instr for its value.
+     */
+    abstract public Instr lower(Optimizer opt);
+
+    /**
+     * optimize
+     * Returns the node that should replace this one (default: this node,
+     * unless opt has found a literal or temporary for it).
+     */
+    public ExpNode optimize(Optimizer opt) {
+        return opt.rewrite(this);
+    }
+
+    /**
+     * isSideEffectFree
+     * Can this expression be evaluated where the program would not
+     * evaluate it (e.g., the right operand of a short-circuit operator)?
+     * That is, it calls nothing, assigns nothing, and cannot trap.  An
+     * operation that can trap (e.g., an add that overflows) must never be
+     * evaluated unless the program itself does, or a program that runs
+     * correctly could stop with an exception.
+     */
+    public boolean isSideEffectFree() {
+        return false;
+    }
+
+    /**
+     * containsCall
+     * Does evaluating this expression call a function (which may use any
+     * of the temporary registers)?
+     */
+    public boolean containsCall() {
+        return false;
+    }
+
+    /**
+     * codeGenExp
+     * Evaluate this expression into the next spill slot of the frame.
+     */
+    public void codeGenExp(){
+        this.codeGenCommon();
+        Codegen.genSpill(Codegen.T0);
+    };
+    abstract protected void codeGenCommon();
+
+    /**
+     * canGenInto
+     * Can this expression be evaluated straight into any register, without
+     * using T0 (see codeGenInto)?  Only literals and variables can.
+     */
+    public boolean canGenInto() {
+        return false;
+    }
+
+    /**
+     * codeGenInto
+     * Evaluate this expression into register reg, leaving the others alone
+     * (only if canGenInto).
+     */
+    public void codeGenInto(String reg) { }
+
+    /**
+     * codeGenEffect
+     * Evaluate this expression for its side effects only (e.g., as a
+     * statement); its value is not left anywhere.
+     */
+    public void codeGenEffect() {
+        this.codeGenCommon();
+    }
+
+    /**
+     * codeGenStore
+     * Store T0 into the variable or field this expression names (only
+     * IdNodes and DotAccessExpNodes can be assigned to).
+     */
+    public void codeGenStore() { }
+
+    /**
+     * codeGenJump
+     * Jump to trueLabel if this (boolean) expression is true and to
+     * falseLabel if it is false.  By default, the value is computed into
+     * T0 and tested.
+     */
+    public void codeGenJump(String trueLabel, String falseLabel) {
+        this.codeGenCommon();
+        Codegen.generate("beq", Codegen.T0, Codegen.FALSE, falseLabel);
+        Codegen.generate("b", trueLabel);
+    }
+
+    private Type myType;  // set by typeCheck
 }
 
 class IntLitNode extends ExpNode {
-    public IntLitNode(int lineNum, int charNum, int intVal) {
-        myLineNum = lineNum;
-        myCharNum = charNum;
+    public IntLitNode(int pos, int intVal) {
+        myPos = pos;
         myIntVal = intVal;
     }
 
@@ -1677,40 +2371,61 @@ class IntLitNode extends ExpNode {
      * Return the line number for this literal.
      */
     public int lineNum() {
-        return myLineNum;
+        return LineMap.lineNum(myPos);
     }
 
     /**
      * Return the char number for this literal.
      */
     public int charNum() {
-        return myCharNum;
+        return LineMap.charNum(myPos);
     }
 
     /**
-     * typeCheck
+     * Return the value of this literal.
      */
-    public Type typeCheck() {
-        return new IntType();
+    public int intVal() {
+        return myIntVal;
+    }
+
+    /**
+     * checkType
+     */
+    protected Type checkType() {
+        return Type.INT;
+    }
+
+    public Instr lower(Optimizer opt) {
+        return opt.constant(myIntVal, this);
+    }
+
+    public boolean isSideEffectFree() {
+        return true;
     }
 
     protected void codeGenCommon() {
-        Codegen.generate("li", "$t0", String.valueOf(myIntVal));
+        codeGenInto(Codegen.T0);
+    }
+
+    public boolean canGenInto() {
+        return true;
+    }
+
+    public void codeGenInto(String reg) {
+        Codegen.generate("li", reg, String.valueOf(myIntVal));
     }
 
     public void unparse(PrintWriter p, int indent) {
         p.print(myIntVal);
     }
 
-    private int myLineNum;
-    private int myCharNum;
+    private int myPos;  // offset in the source
     private int myIntVal;
 }
 
 class StringLitNode extends ExpNode {
-    public StringLitNode(int lineNum, int charNum, String strVal) {
-        myLineNum = lineNum;
-        myCharNum = charNum;
+    public StringLitNode(int pos, String strVal) {
+        myPos = pos;
         myStrVal = strVal;
     }
 
@@ -1718,71 +2433,75 @@ class StringLitNode extends ExpNode {
      * Return the line number for this literal.
      */
     public int lineNum() {
-        return myLineNum;
+        return LineMap.lineNum(myPos);
     }
 
     /**
      * Return the char number for this literal.
      */
     public int charNum() {
-        return myCharNum;
+        return LineMap.charNum(myPos);
     }
 
     /**
-     * typeCheck
+     * checkType
      */
-    public Type typeCheck() {
-        return new StringType();
+    protected Type checkType() {
+        return Type.STRING;
+    }
+
+    public Instr lower(Optimizer opt) {
+        return opt.opaque(this, true);
+    }
+
+    public boolean isSideEffectFree() {
+        return true;
     }
 
     protected void codeGenCommon() {
-        String myLabel = null;
-        if (!Codegen.stringMap.containsKey(myStrVal)) {
-            Codegen.p.print("\t.data\n");
-            myLabel = Codegen.nextLabel();
-            Codegen.p.print(String.format("%s:\t.asciiz %s\n", myLabel, myStrVal));
-            Codegen.p.print("\t.text\n");
-            Codegen.stringMap.put(myStrVal, myLabel);
-        } else {
-            myLabel = Codegen.stringMap.get(myStrVal);
-        }
-        Codegen.generate("la", Codegen.T0, myLabel);
+        Codegen.generate("la", Codegen.T0, Codegen.stringLabel(myStrVal));
     }
 
     public void unparse(PrintWriter p, int indent) {
         p.print(myStrVal);
     }
 
-    private int myLineNum;
-    private int myCharNum;
+    private int myPos;  // offset in the source
     private String myStrVal;
 }
 
 class TrueNode extends ExpNode {
-    public TrueNode(int lineNum, int charNum) {
-        myLineNum = lineNum;
-        myCharNum = charNum;
+    public TrueNode(int pos) {
+        myPos = pos;
     }
 
     /**
      * Return the line number for this literal.
      */
     public int lineNum() {
-        return myLineNum;
+        return LineMap.lineNum(myPos);
     }
 
     /**
      * Return the char number for this literal.
      */
     public int charNum() {
-        return myCharNum;
+        return LineMap.charNum(myPos);
     }
 
     /**
-     * typeCheck
+     * checkType
      */
-    public Type typeCheck() {
-        return new BoolType();
+    protected Type checkType() {
+        return Type.BOOL;
+    }
+
+    public Instr lower(Optimizer opt) {
+        return opt.constant(1, this);
+    }
+
+    public boolean isSideEffectFree() {
+        return true;
     }
 
     protected void codeGenCommon() {
@@ -1790,7 +2509,6 @@ class TrueNode extends ExpNode {
     }
 
     public void codeGenJump(String trueLabel, String falseLabel) {
-        this.codeGenCommon();
         Codegen.generate("b", trueLabel);
     }
 
@@ -1798,35 +2516,41 @@ class TrueNode extends ExpNode {
         p.print("true");
     }
 
-    private int myLineNum;
-    private int myCharNum;
+    private int myPos;  // offset in the source
 }
 
 class FalseNode extends ExpNode {
-    public FalseNode(int lineNum, int charNum) {
-        myLineNum = lineNum;
-        myCharNum = charNum;
+    public FalseNode(int pos) {
+        myPos = pos;
     }
 
     /**
      * Return the line number for this literal.
      */
     public int lineNum() {
-        return myLineNum;
+        return LineMap.lineNum(myPos);
     }
 
     /**
      * Return the char number for this literal.
      */
     public int charNum() {
-        return myCharNum;
+        return LineMap.charNum(myPos);
     }
 
     /**
-     * typeCheck
+     * checkType
      */
-    public Type typeCheck() {
-        return new BoolType();
+    protected Type checkType() {
+        return Type.BOOL;
+    }
+
+    public Instr lower(Optimizer opt) {
+        return opt.constant(0, this);
+    }
+
+    public boolean isSideEffectFree() {
+        return true;
     }
 
     protected void codeGenCommon() {
@@ -1834,7 +2558,6 @@ class FalseNode extends ExpNode {
     }
 
     public void codeGenJump(String trueLabel, String falseLabel) {
-        this.codeGenCommon();
         Codegen.generate("b", falseLabel);
     }
 
@@ -1842,15 +2565,18 @@ class FalseNode extends ExpNode {
         p.print("false");
     }
 
-    private int myLineNum;
-    private int myCharNum;
+    private int myPos;  // offset in the source
 }
 
 class IdNode extends ExpNode {
-    public IdNode(int lineNum, int charNum, String strVal) {
-        myLineNum = lineNum;
-        myCharNum = charNum;
-        myStrVal = strVal;
+    public IdNode(int pos, int nameId) {
+        myPos = pos;
+        myNameId = nameId;
+        myStrVal = Names.name(nameId);
+    }
+
+    public IdNode(int pos, String strVal) {
+        this(pos, Names.intern(strVal));
     }
 
     /**
@@ -1867,6 +2593,13 @@ class IdNode extends ExpNode {
         return myStrVal;
     }
 
+    /**
+     * Return the id of this ID's name in Names.
+     */
+    public int nameId() {
+        return myNameId;
+    }
+
     /**
      * Return the symbol associated with this ID.
      */
@@ -1874,18 +2607,26 @@ class IdNode extends ExpNode {
         return mySym;
     }
 
+    /**
+     * Return the register holding this ID's variable, or null if it is
+     * in memory.
+     */
+    public String reg() {
+        return mySym.reg;
+    }
+
     /**
      * Return the line number for this ID.
      */
     public int lineNum() {
-        return myLineNum;
+        return LineMap.lineNum(myPos);
     }
 
     /**
      * Return the char number for this ID.
      */
     public int charNum() {
-        return myCharNum;
+        return LineMap.charNum(myPos);
     }
 
     /**
@@ -1898,7 +2639,7 @@ class IdNode extends ExpNode {
         TSym sym = null;
 
         try {
-          sym = symTab.lookupGlobal(myStrVal);
+          sym = symTab.lookupGlobal(myNameId);
         } catch (EmptySymTableException ex) {
             System.err.println("Unexpected EmptySymTableException " +
                                " in IdNode.nameAnalysis");
@@ -1906,16 +2647,16 @@ class IdNode extends ExpNode {
         }
 
         if (sym == null) {
-            ErrMsg.fatal(myLineNum, myCharNum, "Undeclared identifier");
+            ErrMsg.fatal(lineNum(), charNum(), "Undeclared identifier");
         } else {
             link(sym);
         }
     }
 
     /**
-     * typeCheck
+     * checkType
      */
-    public Type typeCheck() {
+    protected Type checkType() {
         if (mySym != null) {
             return mySym.getType();
         }
@@ -1926,25 +2667,48 @@ class IdNode extends ExpNode {
         return null;
     }
 
-    private void codeGenLoad(String command) {
-        if(mySym.offset != 1) {
-            Codegen.generateIndexed(command, Codegen.T0, Codegen.FP, mySym.offset);
+    public Instr lower(Optimizer opt) {
+        return opt.load(mySym, this);
+    }
+
+    public boolean isSideEffectFree() {
+        return true;
+    }
+
+    private void codeGenLoad(String command, String reg) {
+        if (mySym.reg != null) {
+            Codegen.generate("move", reg, mySym.reg);
+        } else if(mySym.offset != 1) {
+            Codegen.generateIndexed(command, reg, Codegen.FP, mySym.offset);
         } else {
-            Codegen.generate(command, Codegen.T0, "_" + myStrVal);
+            Codegen.generateGlobal(command, reg, myStrVal, 0);
         }
 
     }
     protected void codeGenCommon() {
-        this.codeGenLoad("lw");
+        this.codeGenLoad("lw", Codegen.T0);
     }
 
-    public void codeGenLoc() {
-        this.codeGenLoad("la");
-        Codegen.genPush(Codegen.T0);
+    public boolean canGenInto() {
+        return true;
+    }
+
+    public void codeGenInto(String reg) {
+        this.codeGenLoad("lw", reg);
+    }
+
+    public void codeGenStore() {
+        if (mySym.reg != null) {
+            Codegen.generate("move", mySym.reg, Codegen.T0);
+        } else if (mySym.offset != 1) {
+            Codegen.generateIndexed("sw", Codegen.T0, Codegen.FP, mySym.offset);
+        } else {
+            Codegen.generateGlobal("sw", Codegen.T0, myStrVal, 0);
+        }
     }
 
     public void codeGenJump(String trueLabel, String falseLabel) {
-        this.codeGenLoad("lw");
+        this.codeGenLoad("lw", Codegen.T0);
         Codegen.generate("beq", Codegen.T0, Codegen.FALSE, falseLabel);
         Codegen.generate("b", trueLabel);
     }
@@ -1956,8 +2720,8 @@ class IdNode extends ExpNode {
         }
     }
 
-    private int myLineNum;
-    private int myCharNum;
+    private int myPos;  // offset in the source
+    private int myNameId;
     private String myStrVal;
     private TSym mySym;
 }
@@ -1998,12 +2762,12 @@ class DotAccessExpNode extends ExpNode {
      * - process the LHS of the dot-access
      * - process the RHS of the dot-access
      * - if the RHS is of a struct type, set the sym for this node so that
-     *   a dot-access "higher up" in the AST can get access to the symbol
-     *   table for the appropriate struct definition
+     *   a dot-access "higher up" in the AST can get access to the fields
+     *   of the appropriate struct definition
      */
     public void nameAnalysis(SymTable symTab) {
         badAccess = false;
-        SymTable structSymTab = null; // to lookup RHS of dot-access
+        StructDefSym structDef = null; // to lookup RHS of dot-access
         TSym sym = null;
 
         myLoc.nameAnalysis(symTab);  // do name analysis on LHS
@@ -2019,9 +2783,9 @@ class DotAccessExpNode extends ExpNode {
                 badAccess = true;
             }
             else if (sym instanceof StructSym) {
-                // get symbol table for struct type
+                // get definition of struct type
                 TSym tempSym = ((StructSym)sym).getStructType().sym();
-                structSymTab = ((StructDefSym)tempSym).getSymTable();
+                structDef = (StructDefSym)tempSym;
             }
             else {  // LHS is not a struct type
                 ErrMsg.fatal(id.lineNum(), id.charNum(),
@@ -2048,9 +2812,9 @@ class DotAccessExpNode extends ExpNode {
                                  "Dot-access of non-struct type");
                     badAccess = true;
                 }
-                else {  // get the struct's symbol table in which to lookup RHS
+                else {  // get the struct in which to lookup RHS
                     if (sym instanceof StructDefSym) {
-                        structSymTab = ((StructDefSym)sym).getSymTable();
+                        structDef = (StructDefSym)sym;
                     }
                     else {
                         System.err.println("Unexpected Sym type in DotAccessExpNode");
@@ -2066,15 +2830,11 @@ class DotAccessExpNode extends ExpNode {
             System.exit(-1);
         }
 
-        // do name analysis on RHS of dot-access in the struct's symbol table
+        // do name analysis on RHS of dot-access in the struct's fields
         if (!badAccess) {
-
-            try {
-                sym = structSymTab.lookupGlobal(myId.name()); // lookup
-            } catch (EmptySymTableException ex) {
-                System.err.println("Unexpected EmptySymTableException " +
-                                 " in DotAccessExpNode.nameAnalysis");
-            }
+            myStruct = structDef;
+            myField = structDef.fieldIndex(myId.nameId()); // lookup
+            sym = myField < 0 ? null : structDef.getField(myField);
 
             if (sym == null) { // not found - RHS is not a valid field name
                 ErrMsg.fatal(myId.lineNum(), myId.charNum(),
@@ -2094,13 +2854,73 @@ class DotAccessExpNode extends ExpNode {
     }
 
     /**
-     * typeCheck
+     * checkType
      */
-    public Type typeCheck() {
+    protected Type checkType() {
         return myId.typeCheck();
     }
 
+    /**
+     * lower
+     * Struct fields are not tracked, so the value is opaque.
+     */
+    public Instr lower(Optimizer opt) {
+        return opt.opaque(this, true);
+    }
+
+    public boolean isSideEffectFree() {
+        return true;
+    }
+
+    /**
+     * Return the struct variable at the root of this (chained) dot-access.
+     */
+    private IdNode base() {
+        if (myLoc instanceof IdNode) {
+            return (IdNode)myLoc;
+        }
+        return ((DotAccessExpNode)myLoc).base();
+    }
+
+    /**
+     * Return the byte offset of the accessed field from the lowest address
+     * of the base variable, summed over the layouts of the chain.
+     */
+    private int fieldOffset() {
+        int offset = myStruct.getFieldOffset(myField);
+        if (myLoc instanceof IdNode) {
+            return offset;
+        }
+        return ((DotAccessExpNode)myLoc).fieldOffset() + offset;
+    }
+
+    /**
+     * Apply command (lw, sw or la) to $t0 and the address of the field,
+     * which is a constant offset from the base variable's address.
+     */
+    private void codeGenAccess(String command) {
+        IdNode base = base();
+        int offset = fieldOffset();
+        if (base.sym().offset != 1) {
+            Codegen.generateIndexed(command, Codegen.T0, Codegen.FP,
+                                    base.sym().offset + offset);
+        } else {
+            Codegen.generateGlobal(command, Codegen.T0, base.name(), offset);
+        }
+    }
+
     protected void codeGenCommon() {
+        codeGenAccess("lw");
+    }
+
+    public void codeGenStore() {
+        codeGenAccess("sw");
+    }
+
+    public void codeGenJump(String trueLabel, String falseLabel) {
+        codeGenAccess("lw");
+        Codegen.generate("beq", Codegen.T0, Codegen.FALSE, falseLabel);
+        Codegen.generate("b", trueLabel);
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -2114,6 +2934,8 @@ class DotAccessExpNode extends ExpNode {
     private IdNode myId;
     private TSym mySym;          // link to TSym for struct type
     private boolean badAccess;  // to prevent multiple, cascading errors
+    private StructDefSym myStruct;  // struct of the LHS, and index of the
+    private int myField;            // RHS field in it
 }
 
 class AssignNode extends ExpNode {
@@ -2149,52 +2971,112 @@ class AssignNode extends ExpNode {
     }
 
     /**
-     * typeCheck
+     * checkType
      */
-    public Type typeCheck() {
+    protected Type checkType() {
         Type typeLhs = myLhs.typeCheck();
         Type typeExp = myExp.typeCheck();
         Type retType = typeLhs;
 
         if (typeLhs.isFnType() && typeExp.isFnType()) {
             ErrMsg.fatal(lineNum(), charNum(), "Function assignment");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         if (typeLhs.isStructDefType() && typeExp.isStructDefType()) {
             ErrMsg.fatal(lineNum(), charNum(), "Struct name assignment");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         if (typeLhs.isStructType() && typeExp.isStructType()) {
             ErrMsg.fatal(lineNum(), charNum(), "Struct variable assignment");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         if (!typeLhs.equals(typeExp) && !typeLhs.isErrorType() && !typeExp.isErrorType()) {
             ErrMsg.fatal(lineNum(), charNum(), "Type mismatch");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         if (typeLhs.isErrorType() || typeExp.isErrorType()) {
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         return retType;
     }
 
-    protected void codeGenCommon() {
-        myExp.codeGenExp();
-
+    /**
+     * lower
+     */
+    public Instr lower(Optimizer opt) {
+        Instr val = myExp.lower(opt);
         if (myLhs instanceof IdNode) {
-            ((IdNode)myLhs).codeGenLoc();
-        } else {
+            opt.store(((IdNode)myLhs).sym(), val);
+        }
+        return opt.assign(val);
+    }
+
+    /**
+     * optimize
+     * An assignment is never replaced, but its right-hand side may be.
+     */
+    public ExpNode optimize(Optimizer opt) {
+        myExp = myExp.optimize(opt);
+        return this;
+    }
+
+    public boolean containsCall() {
+        return myLhs.containsCall() || myExp.containsCall();
+    }
+
+    /**
+     * The value is stored straight to the left-hand side's register, frame
+     * slot or global, and left in T0.
+     */
+    protected void codeGenCommon() {
+        if (myLhs instanceof IdNode && ((IdNode)myLhs).reg() != null &&
+            codeGenInPlace(((IdNode)myLhs).reg())) {
             return;
         }
 
-        Codegen.genPop(Codegen.T1);
-        Codegen.genPop(Codegen.T0);
-        Codegen.generateIndexed("sw", Codegen.T0, Codegen.T1, 0);
+        myExp.codeGenCommon();
+        myLhs.codeGenStore();
+    }
+
+    /**
+     * isStep
+     * See AssignStmtNode.isStep.
+     */
+    public boolean isStep(TSym var) {
+        if (!(myLhs instanceof IdNode) || ((IdNode)myLhs).sym() != var ||
+            !(myExp instanceof PlusNode || myExp instanceof MinusNode)) {
+            return false;
+        }
+        BinaryExpNode exp = (BinaryExpNode)myExp;
+        return isOperand(exp.myExp1) && isOperand(exp.myExp2);
+    }
+
+    private static boolean isOperand(ExpNode exp) {
+        return exp instanceof IdNode || exp instanceof IntLitNode;
+    }
+
+    /**
+     * If this assignment adds a literal to the variable kept in register
+     * reg, do it in place and return true.
+     */
+    private boolean codeGenInPlace(String reg) {
+        if (myExp instanceof PlusNode) {
+            PlusNode sum = (PlusNode)myExp;
+            if (sum.myExp1 instanceof IdNode &&
+                reg.equals(((IdNode)sum.myExp1).reg()) &&
+                sum.myExp2 instanceof IntLitNode) {
+                Codegen.generate(sum.myWraps ? "addu" : "add", reg, reg,
+                                 ((IntLitNode)sum.myExp2).intVal());
+                Codegen.generate("move", Codegen.T0, reg);
+                return true;
+            }
+        }
+        return false;
     }
 
     public void codeGenJump(String trueLabel, String falseLabel) {
@@ -2254,13 +3136,13 @@ class CallExpNode extends ExpNode {
     }
 
     /**
-     * typeCheck
+     * checkType
      */
-    public Type typeCheck() {
+    protected Type checkType() {
         if (!myId.typeCheck().isFnType()) {
             ErrMsg.fatal(myId.lineNum(), myId.charNum(),
                          "Attempt to call a non-function");
-            return new ErrorType();
+            return Type.ERROR;
         }
 
         FnSym fnSym = (FnSym)(myId.sym());
@@ -2280,11 +3162,49 @@ class CallExpNode extends ExpNode {
         return fnSym.getReturnType();
     }
 
+    /**
+     * lower
+     */
+    public Instr lower(Optimizer opt) {
+        myExpList.lower(opt);
+        return opt.opaque(this, false);
+    }
+
+    /**
+     * optimize
+     */
+    public ExpNode optimize(Optimizer opt) {
+        myExpList.optimize(opt);
+        return this;
+    }
+
+    public boolean containsCall() {
+        return true;
+    }
+
     protected void codeGenCommon() {
+        this.codeGenCall();
+        Codegen.generate("move", Codegen.T0, Codegen.V0);
+    }
+
+    public void codeGenEffect() {
+        this.codeGenCall();
+    }
+
+    public void codeGenJump(String trueLabel, String falseLabel) {
+        this.codeGenCall();
+        Codegen.generate("beq", Codegen.V0, Codegen.FALSE, falseLabel);
+        Codegen.generate("b", trueLabel);
+    }
+
+    /**
+     * Generate the call itself; the result is left in V0.
+     */
+    private void codeGenCall() {
         myExpList.codeGen();
 
         String jumpLabel;
-        if (myId.name() != "main"){
+        if (!myId.name().equals("main")) {
             jumpLabel = "_" + myId.name();
         } else {
             jumpLabel = "main";
@@ -2292,14 +3212,6 @@ class CallExpNode extends ExpNode {
 
         Codegen.generate("jal", jumpLabel);
         Codegen.generate("add", Codegen.SP, ((FnSym)myId.sym()).sizeParams);
-
-        if (!((FnSym)myId.sym()).getReturnType().isVoidType()) {
-            Codegen.genPush(Codegen.V0);
-        }
-    }
-
-    public void codeGenExp() {
-        this.codeGenCommon();
     }
 
     // ** unparse **
@@ -2346,6 +3258,28 @@ abstract class UnaryExpNode extends ExpNode {
         myExp.nameAnalysis(symTab);
     }
 
+    /**
+     * optimize
+     * Replaces this node if opt has found a better one; otherwise
+     * optimizes the operand.
+     */
+    public ExpNode optimize(Optimizer opt) {
+        ExpNode exp = opt.rewrite(this);
+        if (exp != this) {
+            return exp;
+        }
+        myExp = myExp.optimize(opt);
+        return opt.save(this);
+    }
+
+    public boolean isSideEffectFree() {
+        return myExp.isSideEffectFree();
+    }
+
+    public boolean containsCall() {
+        return myExp.containsCall();
+    }
+
     // one child
     protected ExpNode myExp;
 }
@@ -2382,11 +3316,55 @@ abstract class BinaryExpNode extends ExpNode {
         myExp2.nameAnalysis(symTab);
     }
 
+    /**
+     * optimize
+     * Replaces this node if opt has found a better one; otherwise
+     * optimizes the operands.
+     */
+    public ExpNode optimize(Optimizer opt) {
+        ExpNode exp = opt.rewrite(this);
+        if (exp != this) {
+            return exp;
+        }
+        myExp1 = myExp1.optimize(opt);
+        myExp2 = myExp2.optimize(opt);
+        return opt.save(this);
+    }
+
+    public boolean isSideEffectFree() {
+        return myExp1.isSideEffectFree() && myExp2.isSideEffectFree();
+    }
+
+    public boolean containsCall() {
+        return myExp1.containsCall() || myExp2.containsCall();
+    }
+
+    /**
+     * genCodeSubExp
+     * Evaluate the operands into T0 and T1.  A literal or variable right
+     * operand is loaded straight into T1.  Otherwise the left operand is
+     * kept in a temporary register while the right one is evaluated,
+     * unless the right one makes a call (or no register is free), in which
+     * case it goes through a spill slot.
+     */
     public void genCodeSubExp() {
+        if (myExp2.canGenInto()) {
+            myExp1.codeGenCommon();
+            myExp2.codeGenInto(Codegen.T1);
+            return;
+        }
+        if (!myExp2.containsCall() && Codegen.canHold()) {
+            myExp1.codeGenCommon();
+            Codegen.genHold(Codegen.T0);
+            myExp2.codeGenCommon();
+            Codegen.generate("move", Codegen.T1, Codegen.T0);
+            Codegen.genRelease(Codegen.T0);
+            return;
+        }
         myExp1.codeGenExp();
         myExp2.codeGenExp();
-        Codegen.genPop(Codegen.T1);
-        Codegen.genPop(Codegen.T0);
+        Codegen.genReload(Codegen.T1);
+        Codegen.genReload(Codegen.T0);
     }
 
     // two kids
@@ -2404,28 +3382,31 @@ class UnaryMinusNode extends UnaryExpNode {
     }
 
     /**
-     * typeCheck
+     * checkType
      */
-    public Type typeCheck() {
+    protected Type checkType() {
         Type type = myExp.typeCheck();
-        Type retType = new IntType();
+        Type retType = Type.INT;
 
         if (!type.isErrorType() && !type.isIntType()) {
             ErrMsg.fatal(lineNum(), charNum(),
                          "Arithmetic operator applied to non-numeric operand");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         if (type.isErrorType()) {
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         return retType;
     }
 
+    public Instr lower(Optimizer opt) {
+        return opt.unary(Instr.NEG, myExp.lower(opt), this);
+    }
+
     protected void codeGenCommon() {
-        myExp.codeGenExp();
-        Codegen.genPop(Codegen.T0);
+        myExp.codeGenCommon();
         Codegen.generate("li", Codegen.T1, -1);
         Codegen.generate("mult", Codegen.T0, Codegen.T1);
         Codegen.generate("mflo", Codegen.T0);
@@ -2444,32 +3425,36 @@ class NotNode extends UnaryExpNode {
     }
 
     /**
-     * typeCheck
+     * checkType
      */
-    public Type typeCheck() {
+    protected Type checkType() {
         Type type = myExp.typeCheck();
-        Type retType = new BoolType();
+        Type retType = Type.BOOL;
 
         if (!type.isErrorType() && !type.isBoolType()) {
             ErrMsg.fatal(lineNum(), charNum(),
                          "Logical operator applied to non-bool operand");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         if (type.isErrorType()) {
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         return retType;
     }
 
+    public Instr lower(Optimizer opt) {
+        return opt.unary(Instr.NOT, myExp.lower(opt), this);
+    }
+
     protected void codeGenCommon() {
-        myExp.codeGenExp();
-        Codegen.genPop(Codegen.T0);
-        Codegen.generate("seq", Codegen.T0, Codegen.T0, Codegen.FALSE);
+        myExp.codeGenCommon();
+        Codegen.generate("sltiu", Codegen.T0, Codegen.T0, 1);
     }
 
     public void codeGenJump(String trueLabel, String falseLabel) {
+        myExp.codeGenJump(falseLabel, trueLabel);
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -2489,27 +3474,27 @@ abstract class ArithmeticExpNode extends BinaryExpNode {
     }
 
     /**
-     * typeCheck
+     * checkType
      */
-    public Type typeCheck() {
+    protected Type checkType() {
         Type type1 = myExp1.typeCheck();
         Type type2 = myExp2.typeCheck();
-        Type retType = new IntType();
+        Type retType = Type.INT;
 
         if (!type1.isErrorType() && !type1.isIntType()) {
             ErrMsg.fatal(myExp1.lineNum(), myExp1.charNum(),
                          "Arithmetic operator applied to non-numeric operand");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         if (!type2.isErrorType() && !type2.isIntType()) {
             ErrMsg.fatal(myExp2.lineNum(), myExp2.charNum(),
                          "Arithmetic operator applied to non-numeric operand");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         if (type1.isErrorType() || type2.isErrorType()) {
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         return retType;
@@ -2522,27 +3507,27 @@ abstract class LogicalExpNode extends BinaryExpNode {
     }
 
     /**
-     * typeCheck
+     * checkType
      */
-    public Type typeCheck() {
+    protected Type checkType() {
         Type type1 = myExp1.typeCheck();
         Type type2 = myExp2.typeCheck();
-        Type retType = new BoolType();
+        Type retType = Type.BOOL;
 
         if (!type1.isErrorType() && !type1.isBoolType()) {
             ErrMsg.fatal(myExp1.lineNum(), myExp1.charNum(),
                          "Logical operator applied to non-bool operand");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         if (!type2.isErrorType() && !type2.isBoolType()) {
             ErrMsg.fatal(myExp2.lineNum(), myExp2.charNum(),
                          "Logical operator applied to non-bool operand");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         if (type1.isErrorType() || type2.isErrorType()) {
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         return retType;
@@ -2555,45 +3540,45 @@ abstract class EqualityExpNode extends BinaryExpNode {
     }
 
     /**
-     * typeCheck
+     * checkType
      */
-    public Type typeCheck() {
+    protected Type checkType() {
         Type type1 = myExp1.typeCheck();
         Type type2 = myExp2.typeCheck();
-        Type retType = new BoolType();
+        Type retType = Type.BOOL;
 
         if (type1.isVoidType() && type2.isVoidType()) {
             ErrMsg.fatal(lineNum(), charNum(),
                          "Equality operator applied to void functions");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         if (type1.isFnType() && type2.isFnType()) {
             ErrMsg.fatal(lineNum(), charNum(),
                          "Equality operator applied to functions");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         if (type1.isStructDefType() && type2.isStructDefType()) {
             ErrMsg.fatal(lineNum(), charNum(),
                          "Equality operator applied to struct names");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         if (type1.isStructType() && type2.isStructType()) {
             ErrMsg.fatal(lineNum(), charNum(),
                          "Equality operator applied to struct variables");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         if (!type1.equals(type2) && !type1.isErrorType() && !type2.isErrorType()) {
             ErrMsg.fatal(lineNum(), charNum(),
                          "Type mismatch");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         if (type1.isErrorType() || type2.isErrorType()) {
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         return retType;
@@ -2606,27 +3591,27 @@ abstract class RelationalExpNode extends BinaryExpNode {
     }
 
     /**
-     * typeCheck
+     * checkType
      */
-    public Type typeCheck() {
+    protected Type checkType() {
         Type type1 = myExp1.typeCheck();
         Type type2 = myExp2.typeCheck();
-        Type retType = new BoolType();
+        Type retType = Type.BOOL;
 
         if (!type1.isErrorType() && !type1.isIntType()) {
             ErrMsg.fatal(myExp1.lineNum(), myExp1.charNum(),
                          "Relational operator applied to non-numeric operand");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         if (!type2.isErrorType() && !type2.isIntType()) {
             ErrMsg.fatal(myExp2.lineNum(), myExp2.charNum(),
                          "Relational operator applied to non-numeric operand");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         if (type1.isErrorType() || type2.isErrorType()) {
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
 
         return retType;
@@ -2638,9 +3623,32 @@ class PlusNode extends ArithmeticExpNode {
         super(exp1, exp2);
     }
 
+    /**
+     * A sum that wraps round on overflow (addu) instead of trapping, for
+     * the additions the optimizer introduces.
+     */
+    public PlusNode(ExpNode exp1, ExpNode exp2, boolean wraps) {
+        super(exp1, exp2);
+        myWraps = wraps;
+    }
+
+    public Instr lower(Optimizer opt) {
+        return opt.binary(Instr.ADD, myExp1.lower(opt), myExp2.lower(opt),
+                          this);
+    }
+
+    /**
+     * isSideEffectFree
+     * Can trap on overflow.
+     */
+    public boolean isSideEffectFree() {
+        return false;
+    }
+
     protected void codeGenCommon() {
         this.genCodeSubExp();
-        Codegen.generate("add", Codegen.T0, Codegen.T0, Codegen.T1);
+        Codegen.generate(myWraps ? "addu" : "add", Codegen.T0, Codegen.T0,
+                         Codegen.T1);
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -2650,6 +3658,8 @@ class PlusNode extends ArithmeticExpNode {
         myExp2.unparse(p, 0);
         p.print(")");
     }
+
+    protected boolean myWraps = false;
 }
 
 class MinusNode extends ArithmeticExpNode {
@@ -2657,6 +3667,19 @@ class MinusNode extends ArithmeticExpNode {
         super(exp1, exp2);
     }
 
+    public Instr lower(Optimizer opt) {
+        return opt.binary(Instr.SUB, myExp1.lower(opt), myExp2.lower(opt),
+                          this);
+    }
+
+    /**
+     * isSideEffectFree
+     * Can trap on overflow.
+     */
+    public boolean isSideEffectFree() {
+        return false;
+    }
+
     protected void codeGenCommon() {
         this.genCodeSubExp();
         Codegen.generate("sub", Codegen.T0, Codegen.T0, Codegen.T1);
@@ -2676,6 +3699,11 @@ class TimesNode extends ArithmeticExpNode {
         super(exp1, exp2);
     }
 
+    public Instr lower(Optimizer opt) {
+        return opt.binary(Instr.MUL, myExp1.lower(opt), myExp2.lower(opt),
+                          this);
+    }
+
     protected void codeGenCommon() {
         this.genCodeSubExp();
         Codegen.generate("mult", Codegen.T0, Codegen.T1);
@@ -2696,6 +3724,19 @@ class DivideNode extends ArithmeticExpNode {
         super(exp1, exp2);
     }
 
+    public Instr lower(Optimizer opt) {
+        return opt.binary(Instr.DIV, myExp1.lower(opt), myExp2.lower(opt),
+                          this);
+    }
+
+    /**
+     * isSideEffectFree
+     * Can trap on division by zero.
+     */
+    public boolean isSideEffectFree() {
+        return false;
+    }
+
     protected void codeGenCommon() {
         this.genCodeSubExp();
         Codegen.generate("div", Codegen.T0, Codegen.T1);
@@ -2716,18 +3757,36 @@ class AndNode extends LogicalExpNode {
         super(exp1, exp2);
     }
 
+    public Instr lower(Optimizer opt) {
+        return opt.shortCircuit(true, myExp1, myExp2, this);
+    }
+
+    /**
+     * The value is computed without branches when the right operand can
+     * be evaluated even if the left one is false.
+     */
     protected void codeGenCommon() {
+        if (myExp2.isSideEffectFree()) {
+            this.genCodeSubExp();
+            Codegen.generate("and", Codegen.T0, Codegen.T0, Codegen.T1);
+            return;
+        }
+
         String rightExpLabel = Codegen.nextLabel();
+        String falseLabel = Codegen.nextLabel();
         String endLabel = Codegen.nextLabel();
-        myExp1.codeGenJump(rightExpLabel, endLabel);
+        myExp1.codeGenJump(rightExpLabel, falseLabel);
         Codegen.genLabel(rightExpLabel);
         myExp2.codeGenCommon();
+        Codegen.generate("b", endLabel);
+        Codegen.genLabel(falseLabel);
+        Codegen.generate("li", Codegen.T0, Codegen.FALSE);
         Codegen.genLabel(endLabel);
     }
 
     public void codeGenJump(String trueLabel, String falseLabel) {
         String rightExpLabel = Codegen.nextLabel();
-        myExp1.codeGenJump(trueLabel, rightExpLabel);
+        myExp1.codeGenJump(rightExpLabel, falseLabel);
         Codegen.genLabel(rightExpLabel);
         myExp2.codeGenJump(trueLabel, falseLabel);
     }
@@ -2746,12 +3805,30 @@ class OrNode extends LogicalExpNode {
         super(exp1, exp2);
     }
 
+    public Instr lower(Optimizer opt) {
+        return opt.shortCircuit(false, myExp1, myExp2, this);
+    }
+
+    /**
+     * The value is computed without branches when the right operand can
+     * be evaluated even if the left one is true.
+     */
     protected void codeGenCommon() {
+        if (myExp2.isSideEffectFree()) {
+            this.genCodeSubExp();
+            Codegen.generate("or", Codegen.T0, Codegen.T0, Codegen.T1);
+            return;
+        }
+
         String rightExpLabel = Codegen.nextLabel();
+        String trueLabel = Codegen.nextLabel();
         String endLabel = Codegen.nextLabel();
-        myExp1.codeGenJump(endLabel, rightExpLabel);
+        myExp1.codeGenJump(trueLabel, rightExpLabel);
         Codegen.genLabel(rightExpLabel);
         myExp2.codeGenCommon();
+        Codegen.generate("b", endLabel);
+        Codegen.genLabel(trueLabel);
+        Codegen.generate("li", Codegen.T0, Codegen.TRUE);
         Codegen.genLabel(endLabel);
     }
 
@@ -2776,15 +3853,20 @@ class EqualsNode extends EqualityExpNode {
         super(exp1, exp2);
     }
 
+    public Instr lower(Optimizer opt) {
+        return opt.binary(Instr.EQ, myExp1.lower(opt), myExp2.lower(opt),
+                          this);
+    }
+
     protected void codeGenCommon() {
         this.genCodeSubExp();
         Codegen.generate("seq", Codegen.T0, Codegen.T0, Codegen.T1);
     }
 
     public void codeGenJump(String trueLabel, String falseLabel) {
-        this.codeGenCommon();
-        Codegen.generate("beq", Codegen.T0, Codegen.FALSE, falseLabel);
-        Codegen.generate("b", trueLabel);
+        this.genCodeSubExp();
+        Codegen.generate("beq", Codegen.T0, Codegen.T1, trueLabel);
+        Codegen.generate("b", falseLabel);
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -2801,15 +3883,20 @@ class NotEqualsNode extends EqualityExpNode {
         super(exp1, exp2);
     }
 
+    public Instr lower(Optimizer opt) {
+        return opt.binary(Instr.NE, myExp1.lower(opt), myExp2.lower(opt),
+                          this);
+    }
+
     protected void codeGenCommon() {
         this.genCodeSubExp();
         Codegen.generate("sne", Codegen.T0, Codegen.T0, Codegen.T1);
     }
 
     public void codeGenJump(String trueLabel, String falseLabel) {
-        this.codeGenCommon();
-        Codegen.generate("beq", Codegen.T0, Codegen.FALSE, falseLabel);
-        Codegen.generate("b", trueLabel);
+        this.genCodeSubExp();
+        Codegen.generate("bne", Codegen.T0, Codegen.T1, trueLabel);
+        Codegen.generate("b", falseLabel);
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -2826,14 +3913,19 @@ class LessNode extends RelationalExpNode {
         super(exp1, exp2);
     }
 
+    public Instr lower(Optimizer opt) {
+        return opt.binary(Instr.LT, myExp1.lower(opt), myExp2.lower(opt),
+                          this);
+    }
+
     protected void codeGenCommon() {
         this.genCodeSubExp();
         Codegen.generate("slt", Codegen.T0, Codegen.T0, Codegen.T1);
     }
     public void codeGenJump(String trueLabel, String falseLabel) {
-        this.codeGenCommon();
-        Codegen.generate("beq", Codegen.T0, Codegen.FALSE, falseLabel);
-        Codegen.generate("b", trueLabel);
+        this.genCodeSubExp();
+        Codegen.generate("blt", Codegen.T0, Codegen.T1, trueLabel);
+        Codegen.generate("b", falseLabel);
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -2850,14 +3942,19 @@ class GreaterNode extends RelationalExpNode {
         super(exp1, exp2);
     }
 
+    public Instr lower(Optimizer opt) {
+        return opt.binary(Instr.GT, myExp1.lower(opt), myExp2.lower(opt),
+                          this);
+    }
+
     protected void codeGenCommon() {
         this.genCodeSubExp();
         Codegen.generate("sgt", Codegen.T0, Codegen.T0, Codegen.T1);
     }
     public void codeGenJump(String trueLabel, String falseLabel) {
-        this.codeGenCommon();
-        Codegen.generate("beq", Codegen.T0, Codegen.FALSE, falseLabel);
-        Codegen.generate("b", trueLabel);
+        this.genCodeSubExp();
+        Codegen.generate("bgt", Codegen.T0, Codegen.T1, trueLabel);
+        Codegen.generate("b", falseLabel);
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -2874,14 +3971,19 @@ class LessEqNode extends RelationalExpNode {
         super(exp1, exp2);
     }
 
+    public Instr lower(Optimizer opt) {
+        return opt.binary(Instr.LE, myExp1.lower(opt), myExp2.lower(opt),
+                          this);
+    }
+
     protected void codeGenCommon() {
         this.genCodeSubExp();
         Codegen.generate("sle", Codegen.T0, Codegen.T0, Codegen.T1);
     }
     public void codeGenJump(String trueLabel, String falseLabel) {
-        this.codeGenCommon();
-        Codegen.generate("beq", Codegen.T0, Codegen.FALSE, falseLabel);
-        Codegen.generate("b", trueLabel);
+        this.genCodeSubExp();
+        Codegen.generate("ble", Codegen.T0, Codegen.T1, trueLabel);
+        Codegen.generate("b", falseLabel);
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -2898,14 +4000,19 @@ class GreaterEqNode extends RelationalExpNode {
         super(exp1, exp2);
     }
 
+    public Instr lower(Optimizer opt) {
+        return opt.binary(Instr.GE, myExp1.lower(opt), myExp2.lower(opt),
+                          this);
+    }
+
     protected void codeGenCommon() {
         this.genCodeSubExp();
         Codegen.generate("sge", Codegen.T0, Codegen.T0, Codegen.T1);
     }
     public void codeGenJump(String trueLabel, String falseLabel) {
-        this.codeGenCommon();
-        Codegen.generate("beq", Codegen.T0, Codegen.FALSE, falseLabel);
-        Codegen.generate("b", trueLabel);
+        this.genCodeSubExp();
+        Codegen.generate("bge", Codegen.T0, Codegen.T1, trueLabel);
+        Codegen.generate("b", falseLabel);
     }
 
     public void unparse(PrintWriter p, int indent) {